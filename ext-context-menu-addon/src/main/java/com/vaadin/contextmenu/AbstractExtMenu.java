@@ -1,24 +1,80 @@
 package com.vaadin.contextmenu;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.vaadin.server.ClientConnector;
 import com.vaadin.server.Resource;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * The items of a menu. Serialized field by field: the items are written as a
+ * tree, and the id index and the back-pointers of the items are rebuilt when
+ * the menu is read.
+ */
+@SuppressWarnings("serial")
+public class AbstractExtMenu implements ExtMenu, Externalizable {
+
+    private final ExtMenuItemList.Owner listOwner = new ExtMenuItemList.Owner() {
+        @Override
+        public void itemAdding(ExtMenuItem item) {
+            checkCanAttach(item);
+            attachItem(item);
+        }
 
-public class AbstractExtMenu implements ExtMenu {
-
-    private final List<ExtMenuItem> extMenuItems = new ArrayList<ExtMenuItem>();
+        @Override
+        public void itemRemoved(ExtMenuItem item) {
+            detachItem(item);
+        }
+    };
+    private final ExtMenuItemList extMenuItems = new ExtMenuItemList(
+            listOwner);
+    /**
+     * The roots of the menu trees, which are indexed like the items but are
+     * not top level items, see {@link #addMenuTree()}.
+     */
+    private final ExtMenuItemList menuTrees = new ExtMenuItemList(listOwner);
+    private final Map<Integer, ExtMenuItem> itemsById = new HashMap<Integer, ExtMenuItem>();
+    private final Map<Integer, DataProviderMenuItems<?>> dataItemOwners = new HashMap<Integer, DataProviderMenuItems<?>>();
     private boolean htmlContentAllowed;
     private ClientConnector connector;
+    private ExtMenuItemIdAllocator idAllocator = new SequentialIdAllocator();
+    private boolean structureChanged = true;
+    private final Set<ExtMenuItem> changedItems = new LinkedHashSet<ExtMenuItem>();
+    private long modificationCount;
+    private boolean trackChanges = true;
+    private transient Executor commandExecutor;
+    private boolean disableItemsWhileRunning;
 
     private void markAsDirty() {
-        // FIXME check if it can be removed at all, or find a way to call it
-        // when needed
+        modificationCount++;
         if (connector != null)
             connector.markAsDirty();
     }
 
+    void markStructureAsDirty() {
+        structureChanged = true;
+        changedItems.clear();
+        markAsDirty();
+    }
+
     public AbstractExtMenu() {
     }
 
@@ -48,9 +104,10 @@ public class AbstractExtMenu implements ExtMenu {
         if (caption == null) {
             throw new IllegalArgumentException("caption cannot be null");
         }
-        ExtMenuItem newItem = new ExtMenuItemImpl(caption, icon, command);
+        ExtMenuItem newItem = new ExtMenuItemImpl(nextItemId(), caption, icon,
+                command);
         extMenuItems.add(newItem);
-        markAsDirty();
+        markStructureAsDirty();
 
         return newItem;
 
@@ -67,12 +124,13 @@ public class AbstractExtMenu implements ExtMenu {
         if (caption == null) {
             throw new IllegalArgumentException("caption cannot be null");
         }
-        ExtMenuItem newItem = new ExtMenuItemImpl(caption, null, null);
+        ExtMenuItem newItem = new ExtMenuItemImpl(nextItemId(), caption, null,
+                null);
         newItem.setLink(link);
         newItem.setUrl(url);
         newItem.setTarget(target);
         extMenuItems.add(newItem);
-        markAsDirty();
+        markStructureAsDirty();
 
         return newItem;
     }
@@ -91,16 +149,11 @@ public class AbstractExtMenu implements ExtMenu {
             throw new IllegalArgumentException("caption cannot be null");
         }
 
-        ExtMenuItem newItem = new ExtMenuItemImpl(caption, icon, command);
-        if (extMenuItems.contains(itemToAddBefore)) {
-            int index = extMenuItems.indexOf(itemToAddBefore);
-            extMenuItems.add(index, newItem);
+        ExtMenuItem newItem = new ExtMenuItemImpl(nextItemId(), caption, icon,
+                command);
+        extMenuItems.addBefore(newItem, itemToAddBefore);
 
-        } else {
-            extMenuItems.add(newItem);
-        }
-
-        markAsDirty();
+        markStructureAsDirty();
 
         return newItem;
     }
@@ -126,7 +179,7 @@ public class AbstractExtMenu implements ExtMenu {
         if (item != null) {
             extMenuItems.remove(item);
         }
-        markAsDirty();
+        markStructureAsDirty();
     }
 
     /*
@@ -137,7 +190,7 @@ public class AbstractExtMenu implements ExtMenu {
     @Override
     public void removeItems() {
         extMenuItems.clear();
-        markAsDirty();
+        markStructureAsDirty();
     }
 
     /*
@@ -158,7 +211,7 @@ public class AbstractExtMenu implements ExtMenu {
     @Override
     public void setHtmlContentAllowed(boolean htmlContentAllowed) {
         this.htmlContentAllowed = htmlContentAllowed;
-        markAsDirty();
+        markStructureAsDirty();
     }
 
     /*
@@ -172,35 +225,556 @@ public class AbstractExtMenu implements ExtMenu {
     }
 
     void itemClicked(int itemId) {
+        DataProviderMenuItems<?> dataItems = dataItemOwners.get(itemId);
+        if (dataItems != null) {
+            dataItems.itemClicked(itemId);
+            return;
+        }
         ExtMenuItem clickedItem = findItemById(itemId);
         if (clickedItem != null) {
-            if (clickedItem.isCheckable())
-                clickedItem.setChecked(!clickedItem.isChecked());
+            itemClicked(clickedItem);
+        }
+    }
+
+    void itemClicked(ExtMenuItem clickedItem) {
+        // e.g. clicked again before the client got the disabled state
+        if (!clickedItem.isEnabled() || !clickedItem.isVisible()) {
+            return;
+        }
+        selectItem(clickedItem);
+    }
+
+    /**
+     * Toggles the item if it is checkable and runs its command, without
+     * checking whether it can be clicked.
+     *
+     * @param item
+     *            the item to select
+     */
+    void selectItem(ExtMenuItem item) {
+        if (item.isCheckable())
+            item.setChecked(!item.isChecked());
+
+        runCommand(item);
+    }
+
+    /**
+     * Runs the command of the item, an {@link AsyncCommand} with the command
+     * executor of this menu.
+     *
+     * @param item
+     *            the item whose command to run
+     */
+    void runCommand(ExtMenuItem item) {
+        Command command = item.getCommand();
+        if (command instanceof AsyncCommand) {
+            runAsyncCommand(item, (AsyncCommand<?>) command);
+        } else if (command != null) {
+            command.menuSelected(item);
+        }
+    }
+
+    private <T> void runAsyncCommand(ExtMenuItem item,
+            AsyncCommand<T> command) {
+        UI ui = connector != null ? connector.getUI() : UI.getCurrent();
+        VaadinSession session = ui != null && ui.getSession() != null
+                ? ui.getSession() : VaadinSession.getCurrent();
+        boolean disable = disableItemsWhileRunning && item.isEnabled();
+        if (disable) {
+            item.setEnabled(false);
+        }
+        Executor executor = getCommandExecutorOrDefault();
+
+        CompletableFuture<CompletionStage<T>> started;
+        try {
+            started = CompletableFuture
+                    .supplyAsync(() -> command.menuSelectedAsync(item), executor);
+        } catch (RejectedExecutionException e) {
+            started = new CompletableFuture<CompletionStage<T>>();
+            started.completeExceptionally(e);
+        }
+        started.thenCompose(stage -> stage)
+                .whenComplete((result, failure) -> {
+                    Throwable cause = failure instanceof CompletionException
+                            && failure.getCause() != null ? failure.getCause()
+                                    : failure;
+                    ExtMenuExecutors.access(ui, session, () -> {
+                        if (disable) {
+                            item.setEnabled(true);
+                        }
+                        command.menuCompleted(item, result, cause);
+                    });
+                });
+    }
+
+    /**
+     * Sets the executor {@link AsyncCommand}s are run with. By default a
+     * shared executor is used, which runs a bounded number of commands at a
+     * time, with a virtual thread per command where available and otherwise
+     * with a pool of threads, and rejects commands when too many are waiting.
+     * A command that is rejected completes with the
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     * <p>
+     * The executor is not serialized with the session; set it again after
+     * deserialization.
+     *
+     * @param executor
+     *            the executor, or null to use the default
+     */
+    public void setCommandExecutor(Executor executor) {
+        commandExecutor = executor;
+    }
+
+    public Executor getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    /**
+     * Gets the executor set with {@link #setCommandExecutor(Executor)}, or the
+     * default one.
+     */
+    Executor getCommandExecutorOrDefault() {
+        return commandExecutor != null ? commandExecutor
+                : ExtMenuExecutors.getDefaultExecutor();
+    }
+
+    /**
+     * Sets whether the item of an {@link AsyncCommand} is disabled until the
+     * command has completed, so that it cannot be started again meanwhile.
+     * Defaults to false.
+     *
+     * @param disableItemsWhileRunning
+     *            true to disable the items of running commands
+     */
+    public void setDisableItemsWhileRunning(boolean disableItemsWhileRunning) {
+        this.disableItemsWhileRunning = disableItemsWhileRunning;
+    }
+
+    public boolean isDisableItemsWhileRunning() {
+        return disableItemsWhileRunning;
+    }
+
+    /**
+     * Applies a checked state that the client has already toggled and shows,
+     * and runs the command of the item. The change is not sent back to the
+     * client, but the state built for a reload is rebuilt.
+     *
+     * @param itemId
+     *            the id of the toggled item
+     * @param checked
+     *            the new checked state
+     */
+    void itemToggled(int itemId, boolean checked) {
+        ExtMenuItem item = findItemById(itemId);
+        if (item == null || !item.isCheckable() || !item.isEnabled()) {
+            return;
+        }
+        if (item.isChecked() != checked) {
+            boolean tracking = trackChanges;
+            trackChanges = false;
+            try {
+                item.setChecked(checked);
+            } finally {
+                trackChanges = tracking;
+            }
+            modificationCount++;
+        }
+        runCommand(item);
+    }
+
+    /**
+     * Adds an already constructed item, e.g. one read from a declarative
+     * design, to the end of this menu.
+     *
+     * @param item
+     *            the item to add
+     */
+    void addItem(ExtMenuItem item) {
+        extMenuItems.add(item);
+        markStructureAsDirty();
+    }
+
+    /**
+     * Adds the items of the template to the end of this menu. The items share
+     * everything but their enabled, checked and visible states and their ids
+     * with the other menus the template is added to; the ids are allocated by
+     * this menu.
+     *
+     * @param template
+     *            the template whose items to add
+     */
+    public void addItems(ExtMenuTemplate template) {
+        List<ExtMenuItem> templateItems = new ArrayList<ExtMenuItem>();
+        for (ExtMenuTemplate.Item templateItem : template.getItems()) {
+            templateItems.add(new TemplateMenuItem(templateItem, null, this));
+        }
+        checkCanAttach(templateItems);
+        extMenuItems.addAll(templateItems);
+        markStructureAsDirty();
+    }
+
+    /**
+     * Adds the root of a separate item tree, whose child items can be shown
+     * instead of the top level items of this menu. The root is not one of
+     * the {@link #getItems() items} of this menu, but its descendants are
+     * resolved by id like the other items.
+     *
+     * @return the new root item
+     */
+    ExtMenuItem addMenuTree() {
+        ExtMenuItem root = new ExtMenuItemImpl(nextItemId(), "", null, null);
+        menuTrees.add(root);
+        markStructureAsDirty();
+        return root;
+    }
+
+    /**
+     * Removes the root of a menu tree and its items from this menu.
+     *
+     * @param root
+     *            the root added with {@link #addMenuTree()}
+     */
+    void removeMenuTree(ExtMenuItem root) {
+        if (menuTrees.remove(root)) {
+            markStructureAsDirty();
+        }
+    }
+
+    /**
+     * Gets the roots of the menu trees of this menu.
+     *
+     * @return the roots, not modifiable
+     */
+    List<ExtMenuItem> getMenuTrees() {
+        return Collections.unmodifiableList(menuTrees);
+    }
+
+    /**
+     * Checks whether the id belongs to an item of this menu, including items
+     * fetched from data providers.
+     *
+     * @param id
+     *            the item id
+     * @return true if the item is in this menu
+     */
+    boolean hasItem(int id) {
+        return itemsById.containsKey(id) || dataItemOwners.containsKey(id);
+    }
+
+    ExtMenuItem findItemById(int id) {
+        return itemsById.get(id);
+    }
 
-            if (clickedItem.getCommand() != null)
-                clickedItem.getCommand().menuSelected(clickedItem);
+    /**
+     * Called by an item of this menu when one of its properties has changed.
+     *
+     * @param item
+     *            the changed item
+     * @param structural
+     *            true if the change affects the structure of the menu, i.e.
+     *            which items are shown, and cannot be applied to the item
+     *            alone
+     */
+    void itemChanged(ExtMenuItem item, boolean structural) {
+        if (!trackChanges) {
+            return;
+        }
+        if (structural) {
+            markStructureAsDirty();
+        } else {
+            if (!structureChanged) {
+                changedItems.add(item);
+            }
+            markAsDirty();
+        }
+    }
+
+    /**
+     * Replaces the child items of the item with the ones added by its
+     * {@link ChildItemProvider}. The new child items are indexed, but they are
+     * not tracked as changes of the menu, as they are sent to the client
+     * separately when the sub-menu is opened.
+     *
+     * @param parent
+     *            the item whose sub-menu is opened
+     */
+    void loadChildItems(ExtMenuItem parent) {
+        ChildItemProvider provider = parent.getChildItemProvider();
+        if (provider == null) {
+            return;
+        }
+        boolean tracking = trackChanges;
+        trackChanges = false;
+        try {
+            parent.removeChildren();
+            provider.addChildItems(parent);
+        } finally {
+            trackChanges = tracking;
+        }
+    }
+
+    /**
+     * Allocates an id for an item fetched from a data provider, so that a
+     * click on it can be dispatched to the data provider items it belongs to.
+     *
+     * @param dataItems
+     *            the data provider items the item was fetched for
+     * @return the id of the item
+     */
+    int registerDataItem(DataProviderMenuItems<?> dataItems) {
+        int id = nextItemId();
+        if (itemsById.containsKey(id) || dataItemOwners.containsKey(id)) {
+            throw new IllegalStateException("Duplicate menu item id " + id);
+        }
+        dataItemOwners.put(id, dataItems);
+        return id;
+    }
+
+    /**
+     * Forgets the items fetched for the data provider items, e.g. when the
+     * sub-menu is opened again and the first page is fetched anew.
+     *
+     * @param dataItems
+     *            the data provider items whose fetched items to forget
+     */
+    void clearDataItems(DataProviderMenuItems<?> dataItems) {
+        for (Integer id : dataItems.clearActiveItems()) {
+            dataItemOwners.remove(id);
+        }
+    }
+
+    /**
+     * Gets the number of modifications made to this menu and its items. The
+     * counter is increased by every change that affects what is shown on the
+     * client, so an unchanged value means that there is nothing to update.
+     *
+     * @return the modification count of this menu
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Checks whether items have been added, removed, hidden or shown since the
+     * last call to {@link #clearChanges()}.
+     *
+     * @return true if the whole menu must be sent to the client again
+     */
+    boolean isStructureChanged() {
+        return structureChanged;
+    }
+
+    /**
+     * Gets the items whose properties have changed since the last call to
+     * {@link #clearChanges()}. Empty if the structure has changed.
+     *
+     * @return the changed items in the order they were changed
+     */
+    Set<ExtMenuItem> getChangedItems() {
+        return changedItems;
+    }
+
+    /**
+     * Marks all changes as sent to the client.
+     */
+    void clearChanges() {
+        structureChanged = false;
+        changedItems.clear();
+    }
+
+    /**
+     * Sets the allocator used for the ids of items added to this menu after
+     * this call. The ids must be unique within the menu.
+     *
+     * @param idAllocator
+     *            the id allocator, not null
+     */
+    public void setItemIdAllocator(ExtMenuItemIdAllocator idAllocator) {
+        if (idAllocator == null) {
+            throw new IllegalArgumentException("idAllocator cannot be null");
         }
+        this.idAllocator = idAllocator;
     }
 
-    private ExtMenuItem findItemById(int id) {
-        // TODO: create a map to avoid that?
-        return findItemById(getItems(), id);
+    /**
+     * Gets the allocator used for the ids of items added to this menu.
+     *
+     * @return the id allocator
+     */
+    public ExtMenuItemIdAllocator getItemIdAllocator() {
+        return idAllocator;
     }
 
-    private ExtMenuItem findItemById(List<ExtMenuItem> items, int id) {
-        if (items == null)
-            return null;
+    int nextItemId() {
+        return idAllocator.nextId();
+    }
+
+    /**
+     * Checks that the item and all of its descendants can be added to the id
+     * index, before the item is added to this menu or to an item of it.
+     *
+     * @param item
+     *            the item that is about to be added
+     * @throws IllegalStateException
+     *             If another item with the same id is in this menu.
+     */
+    void checkCanAttach(ExtMenuItem item) throws IllegalStateException {
+        checkCanAttach(Collections.singletonList(item));
+    }
 
+    /**
+     * Checks that the items and all of their descendants can be added to the
+     * id index, and that they do not have duplicate ids among themselves.
+     *
+     * @param items
+     *            the items that are about to be added
+     * @throws IllegalStateException
+     *             If another item with the same id is in this menu.
+     */
+    void checkCanAttach(Collection<? extends ExtMenuItem> items)
+            throws IllegalStateException {
+        Set<Integer> ids = new HashSet<Integer>();
         for (ExtMenuItem item : items) {
-            if (item.getId() == id)
-                return item;
-            else {
-                ExtMenuItem subItem = findItemById(item.getChildren(), id);
-                if (subItem != null)
-                    return subItem;
+            checkCanAttach(item, ids);
+        }
+    }
+
+    private void checkCanAttach(ExtMenuItem item, Set<Integer> ids) {
+        ExtMenuItem indexed = itemsById.get(item.getId());
+        if ((indexed != null && indexed != item) || !ids.add(item.getId())) {
+            throw new IllegalStateException(
+                    "Duplicate menu item id " + item.getId());
+        }
+        if (item.getChildren() != null) {
+            for (ExtMenuItem child : item.getChildren()) {
+                checkCanAttach(child, ids);
             }
         }
+    }
 
-        return null;
+    /**
+     * Adds the item and all of its descendants to the id index used for
+     * resolving clicked items.
+     *
+     * @param item
+     *            the item that was added to this menu
+     */
+    void attachItem(ExtMenuItem item) {
+        ExtMenuItem previous = itemsById.put(item.getId(), item);
+        if (previous != null && previous != item) {
+            itemsById.put(previous.getId(), previous);
+            throw new IllegalStateException(
+                    "Duplicate menu item id " + item.getId());
+        }
+        if (item instanceof ExtMenuItemImpl) {
+            ((ExtMenuItemImpl) item).setMenu(this);
+        } else if (item instanceof TemplateMenuItem) {
+            ((TemplateMenuItem) item).setMenu(this);
+        }
+        if (item.getChildren() != null) {
+            for (ExtMenuItem child : item.getChildren()) {
+                attachItem(child);
+            }
+        }
+    }
+
+    /**
+     * Removes the item and all of its descendants from the id index.
+     *
+     * @param item
+     *            the item that was removed from this menu
+     */
+    void detachItem(ExtMenuItem item) {
+        if (itemsById.get(item.getId()) == item) {
+            itemsById.remove(item.getId());
+        }
+        changedItems.remove(item);
+        if (item.getDataProviderItems() != null) {
+            clearDataItems(item.getDataProviderItems());
+        }
+        if (item instanceof ExtMenuItemImpl
+                && ((ExtMenuItemImpl) item).getMenu() == this) {
+            ((ExtMenuItemImpl) item).setMenu(null);
+        } else if (item instanceof TemplateMenuItem
+                && ((TemplateMenuItem) item).getMenu() == this) {
+            ((TemplateMenuItem) item).setMenu(null);
+        }
+        if (item.getChildren() != null) {
+            for (ExtMenuItem child : item.getChildren()) {
+                detachItem(child);
+            }
+        }
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeObject(connector);
+        out.writeObject(idAllocator);
+        out.writeBoolean(htmlContentAllowed);
+        out.writeBoolean(disableItemsWhileRunning);
+        out.writeBoolean(structureChanged);
+        out.writeLong(modificationCount);
+
+        out.writeInt(extMenuItems.size());
+        for (ExtMenuItem item : extMenuItems) {
+            out.writeObject(item);
+        }
+        out.writeInt(menuTrees.size());
+        for (ExtMenuItem root : menuTrees) {
+            out.writeObject(root);
+        }
+        // the items are written above, these are back references
+        out.writeInt(changedItems.size());
+        for (ExtMenuItem item : changedItems) {
+            out.writeObject(item);
+        }
+        out.writeInt(dataItemOwners.size());
+        for (Map.Entry<Integer, DataProviderMenuItems<?>> entry : dataItemOwners
+                .entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        connector = (ClientConnector) in.readObject();
+        idAllocator = (ExtMenuItemIdAllocator) in.readObject();
+        htmlContentAllowed = in.readBoolean();
+        disableItemsWhileRunning = in.readBoolean();
+        boolean changed = in.readBoolean();
+        long count = in.readLong();
+
+        int itemCount = in.readInt();
+        for (int i = 0; i < itemCount; i++) {
+            ExtMenuItem item = (ExtMenuItem) in.readObject();
+            extMenuItems.add(item);
+        }
+        int treeCount = in.readInt();
+        for (int i = 0; i < treeCount; i++) {
+            menuTrees.add((ExtMenuItem) in.readObject());
+        }
+        int changedCount = in.readInt();
+        for (int i = 0; i < changedCount; i++) {
+            changedItems.add((ExtMenuItem) in.readObject());
+        }
+        int dataItemCount = in.readInt();
+        for (int i = 0; i < dataItemCount; i++) {
+            int id = in.readInt();
+            dataItemOwners.put(id, (DataProviderMenuItems<?>) in.readObject());
+        }
+        structureChanged = changed;
+        modificationCount = count;
+    }
+
+    private static class SequentialIdAllocator
+            implements ExtMenuItemIdAllocator {
+        private int nextId = 1;
+
+        @Override
+        public int nextId() {
+            return nextId++;
+        }
     }
 }
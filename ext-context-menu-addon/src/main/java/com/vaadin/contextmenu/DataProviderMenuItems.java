@@ -0,0 +1,177 @@
+package com.vaadin.contextmenu;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.vaadin.data.provider.DataProvider;
+import com.vaadin.data.provider.Query;
+import com.vaadin.data.provider.QuerySortOrder;
+import com.vaadin.server.Resource;
+import com.vaadin.ui.IconGenerator;
+import com.vaadin.ui.ItemCaptionGenerator;
+
+/**
+ * The child items of a menu item, fetched from a {@link DataProvider} page by
+ * page while the user moves through the sub-menu. Unlike items added with
+ * {@link ExtMenuItem#addItem(String, ExtMenu.Command)}, the data items are not
+ * stored in the menu; only the items of the pages that the client has
+ * requested since the sub-menu was last opened are kept, so that clicks can be
+ * mapped back to them.
+ * <p>
+ * Set to an item with
+ * {@link ExtMenuItem#setDataProviderItems(DataProviderMenuItems)}. Only
+ * supported by {@link ExtContextExtMenu}.
+ *
+ * @param <T>
+ *            the type of the data items
+ */
+@SuppressWarnings("serial")
+public class DataProviderMenuItems<T> implements Serializable {
+
+    /**
+     * Command invoked when a data item is clicked.
+     *
+     * @param <T>
+     *            the type of the data items
+     */
+    public interface ItemCommand<T> extends Serializable {
+        public void menuSelected(T item);
+    }
+
+    private final DataProvider<T, ?> dataProvider;
+    private final ItemCaptionGenerator<T> captionGenerator;
+    private final ItemCommand<T> command;
+    private IconGenerator<T> iconGenerator;
+    private int pageSize = 50;
+
+    private final Map<Integer, T> activeItems = new HashMap<Integer, T>();
+    /** The size of the data provider, or -1 until queried for this opening. */
+    private int size = -1;
+
+    /**
+     * Creates data items for the given data provider.
+     *
+     * @param dataProvider
+     *            the data provider to fetch the items from, not null
+     * @param captionGenerator
+     *            generates the caption of a menu item, not null
+     * @param command
+     *            the command invoked when an item is clicked, can be null
+     */
+    public DataProviderMenuItems(DataProvider<T, ?> dataProvider,
+            ItemCaptionGenerator<T> captionGenerator, ItemCommand<T> command) {
+        if (dataProvider == null) {
+            throw new IllegalArgumentException("dataProvider cannot be null");
+        }
+        if (captionGenerator == null) {
+            throw new IllegalArgumentException(
+                    "captionGenerator cannot be null");
+        }
+        this.dataProvider = dataProvider;
+        this.captionGenerator = captionGenerator;
+        this.command = command;
+    }
+
+    public DataProvider<T, ?> getDataProvider() {
+        return dataProvider;
+    }
+
+    /**
+     * Sets the generator for the icons of the menu items. Set null to show no
+     * icons.
+     *
+     * @param iconGenerator
+     *            the icon generator
+     */
+    public void setItemIconGenerator(IconGenerator<T> iconGenerator) {
+        this.iconGenerator = iconGenerator;
+    }
+
+    public IconGenerator<T> getItemIconGenerator() {
+        return iconGenerator;
+    }
+
+    /**
+     * Sets the number of items fetched from the data provider and sent to the
+     * client at a time. The default is 50.
+     *
+     * @param pageSize
+     *            the page size, at least 1
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets the number of data items. The data provider is queried once per
+     * opening of the sub-menu, not for every page.
+     *
+     * @return the number of data items
+     */
+    int size() {
+        if (size < 0) {
+            size = size(dataProvider);
+        }
+        return size;
+    }
+
+    List<T> fetchPage(int offset) {
+        return fetch(dataProvider, offset, pageSize);
+    }
+
+    String getCaption(T item) {
+        return captionGenerator.apply(item);
+    }
+
+    Resource getIcon(T item) {
+        return iconGenerator != null ? iconGenerator.apply(item) : null;
+    }
+
+    void addActiveItem(int id, T item) {
+        activeItems.put(id, item);
+    }
+
+    /**
+     * Forgets the items sent to the client so far, and the size of the data
+     * provider.
+     *
+     * @return the ids of the forgotten items
+     */
+    List<Integer> clearActiveItems() {
+        List<Integer> ids = new ArrayList<Integer>(activeItems.keySet());
+        activeItems.clear();
+        size = -1;
+        return ids;
+    }
+
+    void itemClicked(int id) {
+        T item = activeItems.get(id);
+        if (item != null && command != null) {
+            command.menuSelected(item);
+        }
+    }
+
+    private static <T, F> int size(DataProvider<T, F> dataProvider) {
+        return dataProvider.size(new Query<T, F>());
+    }
+
+    private static <T, F> List<T> fetch(DataProvider<T, F> dataProvider,
+            int offset, int limit) {
+        return dataProvider
+                .fetch(new Query<T, F>(offset, limit,
+                        Collections.<QuerySortOrder> emptyList(), null, null))
+                .collect(Collectors.toList());
+    }
+}
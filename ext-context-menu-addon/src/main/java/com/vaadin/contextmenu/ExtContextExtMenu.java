@@ -6,18 +6,24 @@ import java.util.ArrayList;
 import java.util.EventListener;
 import java.util.EventObject;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.vaadin.contextmenu.ExtContextExtMenu.ContextMenuOpenListener.ContextMenuOpenEvent;
+import com.vaadin.contextmenu.client.CompactMenuItems;
 import com.vaadin.contextmenu.client.ContextMenuClientRpc;
 import com.vaadin.contextmenu.client.ContextMenuServerRpc;
 import com.vaadin.contextmenu.client.ExtMenuSharedState;
 import com.vaadin.contextmenu.client.ExtMenuSharedState.ExtMenuItemState;
+import com.vaadin.contextmenu.client.MenuItemOverrides;
 import com.vaadin.event.ContextClickEvent;
 import com.vaadin.event.ContextClickEvent.ContextClickListener;
 import com.vaadin.event.ContextClickEvent.ContextClickNotifier;
 import com.vaadin.server.AbstractExtension;
 import com.vaadin.server.Resource;
 import com.vaadin.server.ResourceReference;
+import com.vaadin.shared.MouseEventDetails;
+import com.vaadin.shared.Registration;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.Component;
 import com.vaadin.util.ReflectTools;
@@ -25,14 +31,56 @@ import com.vaadin.util.ReflectTools;
 @SuppressWarnings("serial")
 public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
 
-    private AbstractExtMenu menu = new AbstractExtMenu();
+    private AbstractExtMenu menu = new AbstractExtMenu(this);
+
+    /**
+     * Modification count of the menu when the shared state was last built, and
+     * when the client was last brought up to date, either by building the
+     * state or by sending changed items.
+     */
+    private long stateModificationCount = -1;
+    private long clientModificationCount = -1;
+
+    private boolean lazySubMenus;
+
+    private MenuBuilder menuBuilder;
+    private boolean openOnClient;
+    /**
+     * The items built for the currently open menu by the {@link MenuBuilder},
+     * and whether the client has reported the menu as closed.
+     */
+    private AbstractExtMenu openMenu;
+    private boolean openMenuClosed;
 
     private ContextClickListener contextClickListener = new ContextClickListener() {
         @Override
         public void contextClick(ContextClickEvent event) {
-            fireEvent(new ContextMenuOpenEvent(ExtContextExtMenu.this, event));
+            if (getState(false).openOnClient
+                    && event.getComponent() == getParent()) {
+                // already opened by the client
+                return;
+            }
+            ContextMenuOpenEvent openEvent = new ContextMenuOpenEvent(
+                    ExtContextExtMenu.this, event);
+            fireEvent(openEvent);
 
-            open(event.getClientX(), event.getClientY());
+            if (menuBuilder != null) {
+                openBuiltMenu(openEvent);
+                return;
+            }
+            MenuItemOverrides overrides = createItemOverrides(openEvent);
+            ExtMenuItem menuTree = getMenuTree(openEvent);
+            if (menuTree != null) {
+                getRpcProxy(ContextMenuClientRpc.class).showContextMenuTree(
+                        event.getClientX(), event.getClientY(),
+                        menuTree.getId(), overrides);
+            } else if (overrides != null) {
+                getRpcProxy(ContextMenuClientRpc.class)
+                        .showContextMenuWithOverrides(event.getClientX(),
+                                event.getClientY(), overrides);
+            } else {
+                open(event.getClientX(), event.getClientY());
+            }
         }
     };
 
@@ -50,7 +98,35 @@ public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
         registerRpc(new ContextMenuServerRpc() {
             @Override
             public void itemClicked(int itemId, boolean menuClosed) {
-                menu.itemClicked(itemId);
+                ExtContextExtMenu.this.itemClicked(itemId);
+            }
+
+            @Override
+            public void contextMenuOpened(MouseEventDetails mouseEventDetails) {
+                fireEvent(new ContextMenuOpenEvent(ExtContextExtMenu.this,
+                        new ContextClickEvent((Component) getParent(),
+                                mouseEventDetails)));
+            }
+
+            @Override
+            public void itemsToggled(Map<Integer, Boolean> checkedStates) {
+                for (Map.Entry<Integer, Boolean> entry : checkedStates
+                        .entrySet()) {
+                    getMenuOf(entry.getKey()).itemToggled(entry.getKey(),
+                            entry.getValue());
+                }
+            }
+
+            @Override
+            public void menuClosed() {
+                // clicks sent in the same request are handled first
+                openMenuClosed = true;
+                markAsDirty();
+            }
+
+            @Override
+            public void loadChildItems(int parentItemId, int offset) {
+                ExtContextExtMenu.this.loadChildItems(parentItemId, offset);
             }
         });
 
@@ -70,10 +146,35 @@ public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
         component.addContextClickListener(contextClickListener);
     }
 
-    public void addContextMenuOpenListener(
+    /**
+     * Adds a listener called when the menu is opened.
+     *
+     * @param contextMenuComponentListener
+     *            the listener to add
+     * @return a registration for removing the listener
+     */
+    public Registration addContextMenuOpenListener(
             ContextMenuOpenListener contextMenuComponentListener) {
-        addListener(ContextMenuOpenEvent.class, contextMenuComponentListener,
+        Registration registration = addListener(ContextMenuOpenEvent.class,
+                contextMenuComponentListener,
                 ContextMenuOpenListener.MENU_OPENED);
+        updateHasOpenListeners();
+        return () -> {
+            registration.remove();
+            updateHasOpenListeners();
+        };
+    }
+
+    /**
+     * Tells the client whether to notify the server when it opens the menu
+     * itself.
+     */
+    private void updateHasOpenListeners() {
+        boolean hasOpenListeners = !getListeners(ContextMenuOpenEvent.class)
+                .isEmpty();
+        if (getState(false).hasOpenListeners != hasOpenListeners) {
+            getState().hasOpenListeners = hasOpenListeners;
+        }
     }
 
     @Override
@@ -87,16 +188,345 @@ public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
          * Vaadin 7 communication mechanism. Thus to be moved e.g. to the
          * AbstractExtMenu.
          */
+        long modificationCount = menu.getModificationCount();
+        if (initial) {
+            // the state built earlier is still valid unless the items have
+            // changed since, even if the changes were sent as patches
+            if (modificationCount != stateModificationCount) {
+                updateState();
+            }
+        } else if (menu.isStructureChanged()) {
+            updateState();
+        } else if (modificationCount != clientModificationCount) {
+            sendChangedItems();
+        }
+        clientModificationCount = modificationCount;
+        menu.clearChanges();
+
+        if (openMenuClosed) {
+            openMenu = null;
+            openMenuClosed = false;
+        }
+    }
+
+    /**
+     * Builds the items of the menu for the open event and sends them to the
+     * client together with the position of the menu. The items are not added
+     * to the shared state, and they are discarded when the menu is closed.
+     */
+    private void openBuiltMenu(ContextMenuOpenEvent event) {
+        AbstractExtMenu builtMenu = new AbstractExtMenu();
+        // ids must not collide with the items of the persistent menu
+        builtMenu.setItemIdAllocator(menu.getItemIdAllocator());
+        builtMenu.setHtmlContentAllowed(isHtmlContentAllowed());
+        menuBuilder.buildMenu(builtMenu, event);
+
+        openMenu = builtMenu;
+        openMenuClosed = false;
+        getRpcProxy(ContextMenuClientRpc.class).showContextMenuWithItems(
+                event.getX(), event.getY(), CompactMenuItems
+                        .encode(convertItemsToState(builtMenu.getItems())));
+    }
+
+    /**
+     * Creates the properties of the items that differ for the opening of the
+     * menu, e.g. for the clicked row of a grid.
+     *
+     * @param event
+     *            the event that opens the menu
+     * @return the overrides, or null to open the menu as it is
+     */
+    MenuItemOverrides createItemOverrides(ContextMenuOpenEvent event) {
+        return null;
+    }
+
+    /**
+     * Gets the top level item whose child items are shown instead of the
+     * other items when the menu is opened, e.g. for the clicked column of a
+     * grid. The item must be in {@link ExtMenuSharedState#menuTreeIds}.
+     *
+     * @param event
+     *            the event that opens the menu
+     * @return the item, or null to show the other top level items
+     */
+    ExtMenuItem getMenuTree(ContextMenuOpenEvent event) {
+        return null;
+    }
+
+    /**
+     * Adds the root of a menu tree. See {@link AbstractExtMenu#addMenuTree()}.
+     *
+     * @return the new root item
+     */
+    ExtMenuItem addMenuTree() {
+        return menu.addMenuTree();
+    }
+
+    /**
+     * Removes the root of a menu tree and its items.
+     *
+     * @param root
+     *            the root added with {@link #addMenuTree()}
+     */
+    void removeMenuTree(ExtMenuItem root) {
+        menu.removeMenuTree(root);
+    }
+
+    /**
+     * Checks whether {@link #createItemOverrides(ContextMenuOpenEvent)} may
+     * return overrides or {@link #getMenuTree(ContextMenuOpenEvent)} a tree,
+     * in which case the menu cannot be opened on the client.
+     */
+    boolean hasItemOverrides() {
+        return false;
+    }
+
+    /**
+     * Checks whether the menu must be opened by the server even when
+     * {@link #setOpenOnClient(boolean) opening on the client} is enabled,
+     * because what is shown depends on the event that opens the menu.
+     */
+    boolean requiresServerOpening() {
+        return hasItemOverrides();
+    }
+
+    /**
+     * Handles a click on an item of the menu.
+     *
+     * @param itemId
+     *            the id of the clicked item
+     */
+    void itemClicked(int itemId) {
+        getMenuOf(itemId).itemClicked(itemId);
+    }
+
+    /**
+     * Selects an item of this menu whose clickability has already been
+     * checked. See {@link AbstractExtMenu#selectItem(ExtMenuItem)}.
+     *
+     * @param item
+     *            the item to select
+     */
+    void selectItem(ExtMenuItem item) {
+        menu.selectItem(item);
+    }
+
+    /**
+     * Runs the command of an item of this menu as if it was clicked, without
+     * toggling it.
+     *
+     * @param item
+     *            the item whose command to run
+     */
+    void runCommand(ExtMenuItem item) {
+        menu.runCommand(item);
+    }
+
+    /**
+     * Checks whether the item is in this menu, not removed or replaced by
+     * another item with the same id.
+     */
+    boolean containsItem(ExtMenuItem item) {
+        return menu.findItemById(item.getId()) == item;
+    }
+
+    /**
+     * Gets the menu the item belongs to, the menu built for the currently
+     * open menu or the persistent one.
+     */
+    private AbstractExtMenu getMenuOf(int itemId) {
+        if (openMenu != null && openMenu.hasItem(itemId)) {
+            return openMenu;
+        }
+        return menu;
+    }
+
+    private void updateState() {
         ExtMenuSharedState extMenuSharedState = getState();
         extMenuSharedState.htmlContentAllowed = isHtmlContentAllowed();
-        extMenuSharedState.menuItems = convertItemsToState(getItems());
+        List<ExtMenuItem> items = getItems();
+        if (!menu.getMenuTrees().isEmpty()) {
+            // the client finds the roots of the menu trees by menuTreeIds
+            items = new ArrayList<ExtMenuItem>(items);
+            items.addAll(menu.getMenuTrees());
+        }
+        extMenuSharedState.menuItems = CompactMenuItems
+                .encode(convertItemsToState(items));
+        extMenuSharedState.structureVersion++;
+        stateModificationCount = menu.getModificationCount();
+    }
+
+    /**
+     * Only properties of existing items have changed. The shared state is
+     * left as it is (so it is not sent again) and the changed items are
+     * patched on the client by id.
+     */
+    private void sendChangedItems() {
+        List<ExtMenuItemState> changedItems = new ArrayList<>();
+        for (ExtMenuItem item : menu.getChangedItems()) {
+            if (isShown(item)) {
+                changedItems.add(convertItemToState(item, false));
+            }
+        }
+        if (!changedItems.isEmpty()) {
+            getRpcProxy(ContextMenuClientRpc.class)
+                    .updateMenuItems(CompactMenuItems.encode(changedItems));
+        }
+    }
+
+    private void loadChildItems(int parentItemId, int offset) {
+        AbstractExtMenu owner = getMenuOf(parentItemId);
+        ExtMenuItem parent = owner.findItemById(parentItemId);
+        List<ExtMenuItemState> childItems = null;
+        int childItemCount = 0;
+        if (parent != null && isShown(parent)) {
+            if (parent.getDataProviderItems() != null) {
+                DataProviderMenuItems<?> dataItems = parent
+                        .getDataProviderItems();
+                if (offset == 0) {
+                    // the sub-menu is opened again, start over
+                    owner.clearDataItems(dataItems);
+                }
+                childItems = fetchDataItems(owner, dataItems, offset);
+                childItemCount = Math.max(dataItems.size(),
+                        offset + childItems.size());
+            } else {
+                owner.loadChildItems(parent);
+                childItems = convertItemsToState(parent.getChildren());
+                childItemCount = childItems != null ? childItems.size() : 0;
+            }
+        }
+        getRpcProxy(ContextMenuClientRpc.class).setChildItems(parentItemId,
+                offset, CompactMenuItems.encode(childItems), childItemCount);
+    }
+
+    private <T> List<ExtMenuItemState> fetchDataItems(AbstractExtMenu owner,
+            DataProviderMenuItems<T> dataItems, int offset) {
+        List<ExtMenuItemState> state = new ArrayList<>();
+        for (T item : dataItems.fetchPage(offset)) {
+            ExtMenuItemState itemState = new ExtMenuItemState();
+            itemState.id = owner.registerDataItem(dataItems);
+            itemState.text = dataItems.getCaption(item);
+            itemState.enabled = true;
+            itemState.icon = ResourceReference.create(dataItems.getIcon(item),
+                    this, "");
+            state.add(itemState);
+            dataItems.addActiveItem(itemState.id, item);
+        }
+        return state;
+    }
+
+    /**
+     * Sets whether the child items of sub-menus are sent to the client only
+     * when the sub-menu is opened, instead of sending the whole menu at once.
+     * Items with a {@link ChildItemProvider} or {@link DataProviderMenuItems}
+     * are always loaded lazily.
+     *
+     * @param lazySubMenus
+     *            true to load sub-menus when they are opened, false to send
+     *            all items up front
+     */
+    public void setLazySubMenus(boolean lazySubMenus) {
+        if (this.lazySubMenus != lazySubMenus) {
+            this.lazySubMenus = lazySubMenus;
+            menu.markStructureAsDirty();
+        }
+    }
+
+    /**
+     * Checks whether sub-menus are loaded when they are opened.
+     *
+     * @return true if sub-menus are loaded lazily
+     * @see #setLazySubMenus(boolean)
+     */
+    public boolean isLazySubMenus() {
+        return lazySubMenus;
+    }
+
+    /**
+     * Sets a builder that adds the items of the menu each time it is opened,
+     * e.g. to show items specific to the clicked target. The items are sent
+     * to the client together with the request to open the menu, and they are
+     * discarded when the menu is closed. The items added to this menu are not
+     * shown while a builder is set.
+     *
+     * @param menuBuilder
+     *            the menu builder, or null to show the items of this menu
+     */
+    public void setMenuBuilder(MenuBuilder menuBuilder) {
+        this.menuBuilder = menuBuilder;
+        if (menuBuilder == null) {
+            openMenu = null;
+        }
+        updateOpenOnClient();
+    }
+
+    public MenuBuilder getMenuBuilder() {
+        return menuBuilder;
+    }
+
+    /**
+     * Sets whether the menu is opened directly by the browser when the
+     * extended component is right-clicked, instead of the server opening it
+     * as a response to the context click. This removes the server round-trip
+     * from opening the menu. {@link ContextMenuOpenListener}s are still
+     * notified, asynchronously, but they cannot change the items of the menu
+     * that is being opened. Components that this menu is set to with
+     * {@link #setAsContextMenuOf(ContextClickNotifier)} are not affected.
+     * <p>
+     * Ignored while a {@link MenuBuilder} is set, or the items have properties
+     * that depend on where the menu is opened, as the items must be built or
+     * evaluated on the server. Grid menus are also opened by the server while
+     * they have grid open listeners, as the listeners need the clicked
+     * section, row and column.
+     *
+     * @param openOnClient
+     *            true to open the menu on the client
+     */
+    public void setOpenOnClient(boolean openOnClient) {
+        this.openOnClient = openOnClient;
+        updateOpenOnClient();
+    }
+
+    public boolean isOpenOnClient() {
+        return openOnClient;
+    }
+
+    /**
+     * Sets whether checkable items are toggled on the client without closing
+     * the menu. The toggles are sent to the server together when the menu is
+     * closed, or after a second without further toggles, and the commands of
+     * the toggled items are then run. Items toggled back to their original
+     * state are not sent.
+     *
+     * @param batchCheckableToggles
+     *            true to toggle checkable items on the client
+     */
+    public void setBatchCheckableToggles(boolean batchCheckableToggles) {
+        getState().batchCheckableToggles = batchCheckableToggles;
+    }
+
+    public boolean isBatchCheckableToggles() {
+        return getState(false).batchCheckableToggles;
+    }
+
+    void updateOpenOnClient() {
+        boolean enabled = openOnClient && menuBuilder == null
+                && !requiresServerOpening();
+        if (getState(false).openOnClient != enabled) {
+            getState().openOnClient = enabled;
+        }
     }
 
     public void open(int x, int y) {
         getRpcProxy(ContextMenuClientRpc.class).showContextMenu(x, y);
     }
 
-    private List<ExtMenuItemState> convertItemsToState(List<ExtMenuItem> items) {
+    /**
+     * Converts the visible items, and the child items that are not loaded
+     * lazily, to the state sent to the client.
+     */
+    List<ExtMenuItemState> convertItemsToState(List<ExtMenuItem> items) {
         if (items == null || items.size() == 0) {
             return null;
         }
@@ -104,39 +534,90 @@ public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
         List<ExtMenuItemState> state = new ArrayList<>();
 
         for (ExtMenuItem item : items) {
-            ExtMenuItemState extMenuItemState = new ExtMenuItemState();
-
             if (!item.isVisible()) {
                 continue;
             }
 
-            extMenuItemState.id = item.getId();
-            extMenuItemState.text = item.getText();
-            extMenuItemState.checkable = item.isCheckable();
-            extMenuItemState.checked = item.isChecked();
-            extMenuItemState.description = item.getDescription();
-            extMenuItemState.enabled = item.isEnabled();
-            extMenuItemState.separator = item.isSeparator();
-            extMenuItemState.icon = ResourceReference.create(item.getIcon(), this,
-                    "");
-            extMenuItemState.styleName = item.getStyleName();
-
-            extMenuItemState.childItems = convertItemsToState(item.getChildren());
-            extMenuItemState.link = item.isLink();
-            extMenuItemState.url = item.getUrl();
-            extMenuItemState.target = item.getTarget();
-
-            state.add(extMenuItemState);
+            state.add(convertItemToState(item, true));
         }
 
         return state;
     }
 
+    private ExtMenuItemState convertItemToState(ExtMenuItem item,
+            boolean includeChildren) {
+        ExtMenuItemState extMenuItemState = new ExtMenuItemState();
+
+        extMenuItemState.id = item.getId();
+        extMenuItemState.text = item.getText();
+        extMenuItemState.checkable = item.isCheckable();
+        extMenuItemState.checked = item.isChecked();
+        extMenuItemState.description = item.getDescription();
+        extMenuItemState.enabled = item.isEnabled();
+        extMenuItemState.separator = item.isSeparator();
+        extMenuItemState.icon = ResourceReference.create(item.getIcon(), this,
+                "");
+        extMenuItemState.styleName = item.getStyleName();
+
+        if (includeChildren) {
+            if (item.getChildItemProvider() != null
+                    || item.getDataProviderItems() != null
+                    || (lazySubMenus && item.hasChildren()
+                            && !isMenuTree(item))) {
+                extMenuItemState.lazyChildItems = true;
+            } else {
+                extMenuItemState.childItems = convertItemsToState(
+                        item.getChildren());
+            }
+        }
+        extMenuItemState.link = item.isLink();
+        extMenuItemState.url = item.getUrl();
+        extMenuItemState.target = item.getTarget();
+
+        return extMenuItemState;
+    }
+
+    /**
+     * Checks whether the item is the root of a menu tree, whose child items
+     * are always sent, as they are shown as the top level items.
+     */
+    private boolean isMenuTree(ExtMenuItem item) {
+        int[] treeIds = getState(false).menuTreeIds;
+        if (treeIds == null || item.getParent() != null) {
+            return false;
+        }
+        for (int treeId : treeIds) {
+            if (treeId == item.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the item is included in the shared state, i.e. it and all
+     * of its parents are visible.
+     */
+    private boolean isShown(ExtMenuItem item) {
+        while (item != null) {
+            if (!item.isVisible()) {
+                return false;
+            }
+            item = item.getParent();
+        }
+        return true;
+    }
+
     @Override
     protected ExtMenuSharedState getState() {
         return (ExtMenuSharedState) super.getState();
     }
 
+    @Override
+    protected ExtMenuSharedState getState(boolean markAsDirty) {
+        return (ExtMenuSharedState) super.getState(markAsDirty);
+    }
+
     protected ContextClickListener getContextClickListener() {
         return contextClickListener;
     }
@@ -216,8 +697,88 @@ public class ExtContextExtMenu extends AbstractExtension implements ExtMenu {
         return menu.isHtmlContentAllowed();
     }
 
+    /**
+     * Gets the modification count of the items of this menu. See
+     * {@link AbstractExtMenu#getModificationCount()}.
+     *
+     * @return the modification count
+     */
+    public long getModificationCount() {
+        return menu.getModificationCount();
+    }
+
+    public void setItemIdAllocator(ExtMenuItemIdAllocator idAllocator) {
+        menu.setItemIdAllocator(idAllocator);
+    }
+
+    public ExtMenuItemIdAllocator getItemIdAllocator() {
+        return menu.getItemIdAllocator();
+    }
+
+    /**
+     * Adds the items of a shared template to this menu. See
+     * {@link AbstractExtMenu#addItems(ExtMenuTemplate)}.
+     *
+     * @param template
+     *            the template whose items to add
+     */
+    public void addItems(ExtMenuTemplate template) {
+        menu.addItems(template);
+    }
+
+    /**
+     * Sets the executor asynchronous commands are run with. See
+     * {@link AbstractExtMenu#setCommandExecutor(Executor)}.
+     *
+     * @param executor
+     *            the executor, or null to use the default
+     */
+    public void setCommandExecutor(Executor executor) {
+        menu.setCommandExecutor(executor);
+    }
+
+    public Executor getCommandExecutor() {
+        return menu.getCommandExecutor();
+    }
+
+    Executor getCommandExecutorOrDefault() {
+        return menu.getCommandExecutorOrDefault();
+    }
+
+    /**
+     * Sets whether the items of running asynchronous commands are disabled.
+     * See {@link AbstractExtMenu#setDisableItemsWhileRunning(boolean)}.
+     *
+     * @param disableItemsWhileRunning
+     *            true to disable the items of running commands
+     */
+    public void setDisableItemsWhileRunning(boolean disableItemsWhileRunning) {
+        menu.setDisableItemsWhileRunning(disableItemsWhileRunning);
+    }
+
+    public boolean isDisableItemsWhileRunning() {
+        return menu.isDisableItemsWhileRunning();
+    }
+
     /**** End of delegates to AbstractExtMenu ****/
 
+    /**
+     * Builds the items of a menu when it is opened.
+     *
+     * @see ExtContextExtMenu#setMenuBuilder(MenuBuilder)
+     */
+    public interface MenuBuilder extends Serializable {
+        /**
+         * Adds the items to show for the open event.
+         *
+         * @param menu
+         *            the empty menu to add the items to
+         * @param event
+         *            the event that opens the menu
+         */
+        public void buildMenu(ExtMenu menu, ContextMenuOpenEvent event);
+    }
+
     public interface ContextMenuOpenListener
             extends EventListener, Serializable {
 
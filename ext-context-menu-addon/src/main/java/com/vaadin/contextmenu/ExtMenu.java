@@ -2,6 +2,8 @@ package com.vaadin.contextmenu;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 
 import com.vaadin.server.Resource;
 
@@ -17,6 +19,70 @@ public interface ExtMenu extends Serializable {
         public void menuSelected(ExtMenuItem selectedItem);
     }
 
+    /**
+     * A command that runs without blocking the session, e.g. a slow export.
+     * When the item is clicked, {@link #menuSelectedAsync(ExtMenuItem)} is
+     * called in a thread of the executor of the menu, see
+     * {@link AbstractExtMenu#setCommandExecutor(Executor)}, without the session
+     * lock. When the returned stage completes,
+     * {@link #menuCompleted(ExtMenuItem, Object, Throwable)} is called with the
+     * session locked through {@link com.vaadin.ui.UI#access(Runnable)}, so
+     * the result is shown with server push or polling.
+     *
+     * @param <T>
+     *            the type of the result of the command
+     */
+    @FunctionalInterface
+    public interface AsyncCommand<T> extends Command {
+
+        /**
+         * Starts the command. Do not access the UI from this method without
+         * {@link com.vaadin.ui.UI#access(Runnable)}.
+         *
+         * @param selectedItem
+         *            the clicked item
+         * @return the stage completed with the result of the command
+         */
+        public CompletionStage<T> menuSelectedAsync(ExtMenuItem selectedItem);
+
+        /**
+         * Called with the session locked when the command has completed,
+         * also when the UI has been closed meanwhile.
+         *
+         * @param selectedItem
+         *            the clicked item
+         * @param result
+         *            the result of the command, or null if it failed
+         * @param failure
+         *            the exception the command failed with, or null
+         */
+        public default void menuCompleted(ExtMenuItem selectedItem, T result,
+                Throwable failure) {
+        }
+
+        /**
+         * Starts the command in the calling thread when it is not run by a
+         * menu, e.g. when called directly by the application. The completion
+         * is called in the thread that completes the stage.
+         */
+        @Override
+        public default void menuSelected(ExtMenuItem selectedItem) {
+            menuSelectedAsync(selectedItem)
+                    .whenComplete((result, failure) -> menuCompleted(
+                            selectedItem, result, failure));
+        }
+    }
+
+    /**
+     * Provides the child items of a {@link ExtMenuItem} on demand. The provider
+     * is called every time the sub-menu of the item is opened, and it should
+     * add the current child items to the given item. Only supported by
+     * {@link ExtContextExtMenu}.
+     */
+    public interface ChildItemProvider extends Serializable {
+        public void addChildItems(ExtMenuItem parent);
+    }
+
     /**
      * Add a new item to the menu bar. Command can be null, but a caption must
      * be given.
@@ -18,10 +18,9 @@ package com.vaadin.contextmenu;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.Executor;
 
 import org.jsoup.nodes.Attributes;
 import org.jsoup.nodes.Element;
@@ -156,41 +155,14 @@ public class ExtMenuBar extends AbstractComponent
     /** Deserialize changes received from client. */
     @Override
     public void changeVariables(Object source, Map<String, Object> variables) {
-        Stack<ExtMenuItem> items = new Stack<ExtMenuItem>();
-        boolean found = false;
-
         if (variables.containsKey("clickedId")) {
 
             Integer clickedId = (Integer) variables.get("clickedId");
-            Iterator<ExtMenuItem> itr = getItems().iterator();
-            while (itr.hasNext()) {
-                items.push(itr.next());
-            }
-
-            ExtMenuItem tmpItem = null;
-
-            // Go through all the items in the extMenu
-            while (!found && !items.empty()) {
-                tmpItem = items.pop();
-                found = (clickedId.intValue() == tmpItem.getId());
-
-                if (tmpItem.hasChildren()) {
-                    itr = tmpItem.getChildren().iterator();
-                    while (itr.hasNext()) {
-                        items.push(itr.next());
-                    }
-                }
-
-            } // while
+            ExtMenuItem clickedItem = extMenu.findItemById(clickedId.intValue());
 
             // If we got the clicked item, launch the command.
-            if (found && tmpItem.isEnabled()) {
-                if (tmpItem.isCheckable()) {
-                    tmpItem.setChecked(!tmpItem.isChecked());
-                }
-                if (null != tmpItem.getCommand()) {
-                    tmpItem.getCommand().menuSelected(tmpItem);
-                }
+            if (clickedItem != null && clickedItem.isEnabled()) {
+                extMenu.itemClicked(clickedItem);
             }
         } // if
     }// changeVariables
@@ -303,8 +275,8 @@ public class ExtMenuBar extends AbstractComponent
             }
         }
 
-        ExtMenuItemImpl menu = new ExtMenuItemImpl(parent, caption.trim(), icon,
-                null);
+        ExtMenuItemImpl menu = new ExtMenuItemImpl(extMenu.nextItemId(),
+                parent, caption.trim(), icon, null);
 
         Attributes attr = menuElement.attributes();
         if (menuElement.hasAttr("icon")) {
@@ -421,7 +393,7 @@ public class ExtMenuBar extends AbstractComponent
                 if (itemElement.hasAttr("more")) {
                     setMoreMenuItem(extMenuItem);
                 } else {
-                    getItems().add(extMenuItem);
+                    extMenu.addItem(extMenuItem);
                 }
             }
         }
@@ -439,7 +411,7 @@ public class ExtMenuBar extends AbstractComponent
 
     /**** Delegates to AbstractExtMenu ****/
 
-    private ExtMenu extMenu = new AbstractExtMenu(this);
+    private AbstractExtMenu extMenu = new AbstractExtMenu(this);
 
     @Override
     public ExtMenuItem addItem(String caption, Command command) {
@@ -497,6 +469,55 @@ public class ExtMenuBar extends AbstractComponent
         return extMenu.isHtmlContentAllowed();
     }
 
+    public void setItemIdAllocator(ExtMenuItemIdAllocator idAllocator) {
+        extMenu.setItemIdAllocator(idAllocator);
+    }
+
+    public ExtMenuItemIdAllocator getItemIdAllocator() {
+        return extMenu.getItemIdAllocator();
+    }
+
+    /**
+     * Adds the items of a shared template to this menu. See
+     * {@link AbstractExtMenu#addItems(ExtMenuTemplate)}.
+     *
+     * @param template
+     *            the template whose items to add
+     */
+    public void addItems(ExtMenuTemplate template) {
+        extMenu.addItems(template);
+    }
+
+    /**
+     * Sets the executor asynchronous commands are run with. See
+     * {@link AbstractExtMenu#setCommandExecutor(Executor)}.
+     *
+     * @param executor
+     *            the executor, or null to use the default
+     */
+    public void setCommandExecutor(Executor executor) {
+        extMenu.setCommandExecutor(executor);
+    }
+
+    public Executor getCommandExecutor() {
+        return extMenu.getCommandExecutor();
+    }
+
+    /**
+     * Sets whether the items of running asynchronous commands are disabled.
+     * See {@link AbstractExtMenu#setDisableItemsWhileRunning(boolean)}.
+     *
+     * @param disableItemsWhileRunning
+     *            true to disable the items of running commands
+     */
+    public void setDisableItemsWhileRunning(boolean disableItemsWhileRunning) {
+        extMenu.setDisableItemsWhileRunning(disableItemsWhileRunning);
+    }
+
+    public boolean isDisableItemsWhileRunning() {
+        return extMenu.isDisableItemsWhileRunning();
+    }
+
     /**** End of deletates to AbstractExtMenu ****/
 
     // public class ExtMenuItem extends ExtMenuItemImpl implements Serializable {
@@ -0,0 +1,109 @@
+package com.vaadin.contextmenu;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.contextmenu.ExtMenu.Command;
+
+/**
+ * Application wide registry of menu commands. When a menu is serialized with
+ * the session, a registered command is written as its key instead of as a
+ * serialized object, which keeps the serialized session small and lets the
+ * command refer to objects that are not serializable. The same commands must
+ * be registered with the same keys on every node that deserializes the
+ * session, e.g. when the application starts.
+ * <p>
+ * Registered commands are shared by all sessions, so they must not keep
+ * per-session state; they get the clicked item as a parameter.
+ */
+public final class ExtMenuCommandRegistry {
+
+    private static final Map<String, Command> commandsByKey = new ConcurrentHashMap<String, Command>();
+    private static final Map<Command, String> keysByCommand = Collections
+            .synchronizedMap(new IdentityHashMap<Command, String>());
+
+    private ExtMenuCommandRegistry() {
+    }
+
+    /**
+     * Registers the command under the key.
+     *
+     * @param key
+     *            the key of the command, unique within the application
+     * @param command
+     *            the command, not null
+     * @return the command, for convenience
+     * @throws IllegalStateException
+     *             If another command is already registered with the key.
+     */
+    public static Command register(String key, Command command)
+            throws IllegalStateException {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        if (command == null) {
+            throw new IllegalArgumentException("command cannot be null");
+        }
+        Command previous = commandsByKey.putIfAbsent(key, command);
+        if (previous != null && previous != command) {
+            throw new IllegalStateException(
+                    "A different command is already registered as " + key);
+        }
+        keysByCommand.put(command, key);
+        return command;
+    }
+
+    /**
+     * Gets the command registered under the key.
+     *
+     * @param key
+     *            the key of the command
+     * @return the command, or null if there is none
+     */
+    public static Command get(String key) {
+        return commandsByKey.get(key);
+    }
+
+    /**
+     * Gets the key the command is registered under.
+     *
+     * @param command
+     *            the command
+     * @return the key, or null if the command is not registered
+     */
+    public static String getKey(Command command) {
+        return command != null ? keysByCommand.get(command) : null;
+    }
+
+    static void writeCommand(ObjectOutput out, Command command)
+            throws IOException {
+        String key = getKey(command);
+        out.writeBoolean(key != null);
+        if (key != null) {
+            // the same key instance is written as a back reference
+            out.writeObject(key);
+        } else {
+            out.writeObject(command);
+        }
+    }
+
+    static Command readCommand(ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        if (!in.readBoolean()) {
+            return (Command) in.readObject();
+        }
+        String key = (String) in.readObject();
+        Command command = get(key);
+        if (command == null) {
+            throw new InvalidObjectException(
+                    "No menu command has been registered as " + key);
+        }
+        return command;
+    }
+}
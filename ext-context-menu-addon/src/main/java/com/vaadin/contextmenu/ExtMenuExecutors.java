@@ -0,0 +1,172 @@
+package com.vaadin.contextmenu;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+/**
+ * The default executor of {@link ExtMenu.AsyncCommand}s, shared by all menus.
+ * Runs at most {@link #MAX_RUNNING_COMMANDS} commands at a time, with a
+ * virtual thread per command when running on a Java version that has them,
+ * and otherwise with a pool of that many daemon threads. Up to
+ * {@link #QUEUE_CAPACITY} further commands wait for a running one to
+ * complete; beyond that commands are rejected. Also hands the results of
+ * commands run in other threads back to the session.
+ */
+final class ExtMenuExecutors {
+
+    /**
+     * The number of commands run at the same time, so that menus cannot
+     * flood the backends the commands call, also with virtual threads.
+     */
+    static final int MAX_RUNNING_COMMANDS = Math.max(2,
+            Runtime.getRuntime().availableProcessors());
+    /** The number of commands waiting for a running one to complete. */
+    static final int QUEUE_CAPACITY = 1000;
+
+    private static class DefaultExecutorHolder {
+        private static final Executor EXECUTOR = createDefaultExecutor();
+    }
+
+    private ExtMenuExecutors() {
+    }
+
+    static Executor getDefaultExecutor() {
+        return DefaultExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Runs the task with the session locked, from any thread. The UI and the
+     * session are captured when the command is started, as there is no
+     * current UI in the threads of an executor. When the UI has been
+     * detached meanwhile, e.g. closed, the session is still locked. Only
+     * when there is no session at all, e.g. when the menu is used without a
+     * UI, the task is run in the calling thread.
+     *
+     * @param ui
+     *            the UI the command was started from, or null
+     * @param session
+     *            the session of the UI, or null
+     * @param task
+     *            the task to run
+     */
+    static void access(UI ui, VaadinSession session, Runnable task) {
+        if (ui != null) {
+            try {
+                ui.access(task::run);
+                return;
+            } catch (UIDetachedException e) {
+                // closed while the command was running
+            }
+        }
+        if (session != null) {
+            session.access(task::run);
+        } else {
+            task.run();
+        }
+    }
+
+    private static Executor createDefaultExecutor() {
+        try {
+            // Java 21 and later, looked up as this is compiled for Java 8
+            Method factory = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return new BoundedExecutor((Executor) factory.invoke(null),
+                    MAX_RUNNING_COMMANDS, QUEUE_CAPACITY);
+        } catch (ReflectiveOperationException e) {
+            // no virtual threads
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable,
+                    "ext-menu-command-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_RUNNING_COMMANDS,
+                MAX_RUNNING_COMMANDS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Runs at most a given number of tasks at a time with another executor,
+     * which does not limit them itself, e.g. one with a thread per task. The
+     * other tasks wait in a bounded queue.
+     */
+    static final class BoundedExecutor implements Executor {
+        private final Executor executor;
+        private final int maxRunning;
+        private final int queueCapacity;
+        private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+        private int running;
+
+        BoundedExecutor(Executor executor, int maxRunning, int queueCapacity) {
+            this.executor = executor;
+            this.maxRunning = maxRunning;
+            this.queueCapacity = queueCapacity;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            synchronized (this) {
+                if (running >= maxRunning) {
+                    if (waiting.size() >= queueCapacity) {
+                        throw new RejectedExecutionException(
+                                "Too many menu commands waiting");
+                    }
+                    waiting.add(task);
+                    return;
+                }
+                running++;
+            }
+            dispatch(task);
+        }
+
+        private void dispatch(Runnable task) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        runNext();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    running--;
+                }
+                throw e;
+            }
+        }
+
+        private void runNext() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            // keeps the slot of the completed task
+            dispatch(next);
+        }
+    }
+}
@@ -163,6 +163,46 @@ public interface ExtMenuItem extends Serializable {
     void setLink(boolean link);
 
     void setTarget(String target);
+    /**
+     * Sets a provider that adds the child items of this item when its sub-menu
+     * is opened. The current child items are removed before the provider is
+     * called. Set null to remove.
+     * 
+     * @param childItemProvider
+     *            the provider of the child items
+     * @throws IllegalStateException
+     *             If the item is checkable and thus cannot have children.
+     */
+    void setChildItemProvider(ExtMenu.ChildItemProvider childItemProvider)
+            throws IllegalStateException;
+
+    /**
+     * Gets the provider of the child items of this item.
+     * 
+     * @return the child item provider, or null if there is none
+     */
+    ExtMenu.ChildItemProvider getChildItemProvider();
+
+    /**
+     * Sets the child items of this item to be fetched from a data provider
+     * when its sub-menu is opened. An item with data provider items cannot
+     * have other child items. Set null to remove.
+     *
+     * @param dataProviderItems
+     *            the data provider items
+     * @throws IllegalStateException
+     *             If the item is checkable or already has child items.
+     */
+    void setDataProviderItems(DataProviderMenuItems<?> dataProviderItems)
+            throws IllegalStateException;
+
+    /**
+     * Gets the data provider items of this item.
+     *
+     * @return the data provider items, or null if there are none
+     */
+    DataProviderMenuItems<?> getDataProviderItems();
+
     /**
      * Remove the first occurrence of the item.
      * 
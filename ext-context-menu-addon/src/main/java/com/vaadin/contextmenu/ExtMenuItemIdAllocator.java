@@ -0,0 +1,22 @@
+package com.vaadin.contextmenu;
+
+import java.io.Serializable;
+
+/**
+ * Allocates the ids of the items of a menu. The ids are used for identifying
+ * the clicked item when the client sends a click back to the server, so an
+ * allocator must never return the same id twice for the same menu.
+ * <p>
+ * By default every menu uses its own counter, starting from 1. A custom
+ * allocator, e.g. a sequence shared by all menus of a session, can be set with
+ * {@link AbstractExtMenu#setItemIdAllocator(ExtMenuItemIdAllocator)}.
+ */
+public interface ExtMenuItemIdAllocator extends Serializable {
+
+    /**
+     * Returns the id for a new menu item.
+     *
+     * @return an id that has not been returned before
+     */
+    int nextId();
+}
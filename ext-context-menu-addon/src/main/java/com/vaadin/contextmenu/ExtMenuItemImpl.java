@@ -1,10 +1,14 @@
 package com.vaadin.contextmenu;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.vaadin.contextmenu.ExtMenu.ChildItemProvider;
 import com.vaadin.contextmenu.ExtMenu.Command;
 import com.vaadin.server.Resource;
 
@@ -12,46 +16,100 @@ import com.vaadin.server.Resource;
  * A composite class for menu items and sub-menus. You can set commands to be
  * fired on user click by implementing the {@link ExtMenu.Command} interface. You
  * can also add multiple MenuItems to a ExtMenuItem and create a sub-menu.
- * 
+ * <p>
+ * Items are serialized field by field, without the parent and menu
+ * back-pointers, which are restored when the parent item or the menu is
+ * read. Commands registered in {@link ExtMenuCommandRegistry} are written as
+ * their keys.
  */
 @SuppressWarnings("serial")
-class ExtMenuItemImpl implements Serializable, ExtMenuItem {
+class ExtMenuItemImpl implements Externalizable, ExtMenuItem {
+
+    /**
+     * Ids for items that are not created through a menu, e.g. the "more" item
+     * of {@link ExtMenuBar}. Negative so that they never collide with the ids
+     * allocated by a menu.
+     */
+    private static final AtomicInteger detachedIds = new AtomicInteger();
 
     /** Private members * */
-    private final int itsId;
+    private int itsId;
     private Command itsCommand;
     private String itsText;
-    private List<ExtMenuItem> itsChildren;
+    private ExtMenuItemList itsChildren;
     private Resource itsIcon;
     private ExtMenuItem itsParent;
-    private boolean enabled = true;
-    private boolean visible = true;
-    private boolean isSeparator = false;
+    private AbstractExtMenu itsMenu;
     private String styleName;
-    private String description;
-    private boolean checkable = false;
-    private boolean checked = false;
-    private boolean link = false;
-    private String target = "_blank";
+    /** Boolean properties, see the flag constants. */
+    private int flags = ENABLED | VISIBLE;
+    /** Properties that most items do not have, null until one is set. */
+    private Extras extras;
+
+    private static final int ENABLED = 1;
+    private static final int VISIBLE = 1 << 1;
+    private static final int SEPARATOR = 1 << 2;
+    private static final int CHECKABLE = 1 << 3;
+    private static final int CHECKED = 1 << 4;
+    private static final int LINK = 1 << 5;
+
+    private static final String DEFAULT_TARGET = "_blank";
+
+    private static class Extras {
+        private ChildItemProvider childItemProvider;
+        private DataProviderMenuItems<?> dataProviderItems;
+        private String description;
+        private String target = DEFAULT_TARGET;
+    }
+
+    private boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    private void setFlag(int flag, boolean value) {
+        if (value) {
+            flags |= flag;
+        } else {
+            flags &= ~flag;
+        }
+    }
+
+    private Extras getExtras() {
+        if (extras == null) {
+            extras = new Extras();
+        }
+        return extras;
+    }
 
     public void setLink(boolean link) {
-        this.link = link;
+        setFlag(LINK, link);
+        markAsDirty();
     }
 
     public void setUrl(String url) {
         this.url = url;
+        markAsDirty();
     }
 
     public void setTarget(String target) {
-        this.target = target;
+        if (extras != null || !DEFAULT_TARGET.equals(target)) {
+            getExtras().target = target;
+        }
+        markAsDirty();
     }
 
     private String url = "";
 
     private void markAsDirty() {
-        // FIXME we need to delegate this to the ExtMenuBar or better convert the
-        // menubar to Vaadin 7 communication
-        // and remove this method
+        if (itsMenu != null) {
+            itsMenu.itemChanged(this, false);
+        }
+    }
+
+    private void markStructureAsDirty() {
+        if (itsMenu != null) {
+            itsMenu.itemChanged(this, true);
+        }
     }
 
     /**
@@ -66,25 +124,43 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      * @throws IllegalArgumentException
      */
     public ExtMenuItemImpl(String caption, Resource icon, Command command) {
+        this(detachedIds.decrementAndGet(), caption, icon, command);
+    }
+
+    public ExtMenuItemImpl(ExtMenuItem parent, String trim, Resource icon,
+            Command object) {
+        this(trim, icon, object);
+        setParent(parent);
+    }
+
+    /**
+     * Only used when deserializing an item.
+     */
+    public ExtMenuItemImpl() {
+    }
+
+    ExtMenuItemImpl(int id, String caption, Resource icon, Command command) {
         if (caption == null) {
             throw new IllegalArgumentException("caption cannot be null");
         }
 
-        itsId = getNextId();
+        itsId = id;
         itsText = caption;
         itsIcon = icon;
         itsCommand = command;
     }
 
-    public ExtMenuItemImpl(ExtMenuItem parent, String trim, Resource icon,
-            Command object) {
-        this(trim, icon, object);
+    ExtMenuItemImpl(int id, ExtMenuItem parent, String caption, Resource icon,
+            Command command) {
+        this(id, caption, icon, command);
         setParent(parent);
     }
 
     protected int getNextId() {
-        // FIXME is this good enough? maybe just random?
-        return UUID.randomUUID().hashCode();
+        if (itsMenu != null) {
+            return itsMenu.nextItemId();
+        }
+        return detachedIds.decrementAndGet();
     }
 
     /*
@@ -162,19 +238,24 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
         if (caption == null) {
             throw new IllegalArgumentException("Caption cannot be null");
         }
+        checkNoDataProviderItems();
 
-        if (itsChildren == null) {
-            itsChildren = new ArrayList<ExtMenuItem>();
-        }
-
-        ExtMenuItemImpl newItem = new ExtMenuItemImpl(this, caption, icon, command);
+        ExtMenuItemImpl newItem = new ExtMenuItemImpl(getNextId(), this, caption,
+                icon, command);
         newItem.setLink(isLink);
         newItem.setUrl(url);
         newItem.setSeparator(separator);
 
+        if (itsMenu != null) {
+            // before creating the child list, which makes this a parent
+            itsMenu.checkCanAttach(newItem);
+        }
+        if (itsChildren == null) {
+            itsChildren = newChildList();
+        }
         itsChildren.add(newItem);
 
-        markAsDirty();
+        markStructureAsDirty();
 
         return newItem;
     }
@@ -200,17 +281,18 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
             throw new IllegalStateException(
                     "A checkable item cannot have children");
         }
+        checkNoDataProviderItems();
         ExtMenuItem newItem = null;
 
         if (hasChildren() && itsChildren.contains(itemToAddBefore)) {
-            int index = itsChildren.indexOf(itemToAddBefore);
-            newItem = new ExtMenuItemImpl(this, caption, icon, command);
-            itsChildren.add(index, newItem);
+            newItem = new ExtMenuItemImpl(getNextId(), this, caption,
+                icon, command);
+            itsChildren.addBefore(newItem, itemToAddBefore);
         } else {
             newItem = addItem(caption, icon, command);
         }
 
-        markAsDirty();
+        markStructureAsDirty();
 
         return newItem;
     }
@@ -337,7 +419,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
             if (itsChildren.isEmpty()) {
                 itsChildren = null;
             }
-            markAsDirty();
+            markStructureAsDirty();
         }
     }
 
@@ -351,7 +433,70 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
         if (itsChildren != null) {
             itsChildren.clear();
             itsChildren = null;
-            markAsDirty();
+            markStructureAsDirty();
+        }
+    }
+
+    @Override
+    public void setChildItemProvider(ChildItemProvider childItemProvider)
+            throws IllegalStateException {
+        if (childItemProvider != null) {
+            if (isSeparator()) {
+                throw new UnsupportedOperationException(
+                        "Cannot add items to a separator");
+            }
+            if (isCheckable()) {
+                throw new IllegalStateException(
+                        "A checkable item cannot have children");
+            }
+            checkNoDataProviderItems();
+        }
+        if (extras != null || childItemProvider != null) {
+            getExtras().childItemProvider = childItemProvider;
+        }
+        markStructureAsDirty();
+    }
+
+    @Override
+    public ChildItemProvider getChildItemProvider() {
+        return extras != null ? extras.childItemProvider : null;
+    }
+
+    @Override
+    public void setDataProviderItems(DataProviderMenuItems<?> dataProviderItems)
+            throws IllegalStateException {
+        if (dataProviderItems != null) {
+            if (isSeparator()) {
+                throw new UnsupportedOperationException(
+                        "Cannot add items to a separator");
+            }
+            if (isCheckable()) {
+                throw new IllegalStateException(
+                        "A checkable item cannot have children");
+            }
+            if (hasChildren() || getChildItemProvider() != null) {
+                throw new IllegalStateException(
+                        "An item with child items cannot have data provider items");
+            }
+        }
+        if (itsMenu != null && getDataProviderItems() != null) {
+            itsMenu.clearDataItems(getDataProviderItems());
+        }
+        if (extras != null || dataProviderItems != null) {
+            getExtras().dataProviderItems = dataProviderItems;
+        }
+        markStructureAsDirty();
+    }
+
+    @Override
+    public DataProviderMenuItems<?> getDataProviderItems() {
+        return extras != null ? extras.dataProviderItems : null;
+    }
+
+    private void checkNoDataProviderItems() {
+        if (getDataProviderItems() != null) {
+            throw new IllegalStateException(
+                    "An item with data provider items cannot have other child items");
         }
     }
 
@@ -372,7 +517,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public void setEnabled(boolean enabled) {
-        this.enabled = enabled;
+        setFlag(ENABLED, enabled);
         markAsDirty();
     }
 
@@ -383,7 +528,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public boolean isEnabled() {
-        return enabled;
+        return hasFlag(ENABLED);
     }
 
     /*
@@ -393,8 +538,8 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public void setVisible(boolean visible) {
-        this.visible = visible;
-        markAsDirty();
+        setFlag(VISIBLE, visible);
+        markStructureAsDirty();
     }
 
     /*
@@ -404,12 +549,12 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public boolean isVisible() {
-        return visible;
+        return hasFlag(VISIBLE);
     }
 
     protected void setSeparator(boolean isSeparator) {
-        this.isSeparator = isSeparator;
-        markAsDirty();
+        setFlag(SEPARATOR, isSeparator);
+        markStructureAsDirty();
     }
 
     /*
@@ -419,7 +564,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public boolean isSeparator() {
-        return isSeparator;
+        return hasFlag(SEPARATOR);
     }
 
     /*
@@ -436,7 +581,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
 
     @Override
     public boolean isLink() {
-        return link;
+        return hasFlag(LINK);
     }
 
     @Override
@@ -456,7 +601,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
 
     @Override
     public String getTarget() {
-        return target;
+        return extras != null ? extras.target : DEFAULT_TARGET;
     }
 
     /*
@@ -467,7 +612,9 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public void setDescription(String description) {
-        this.description = description;
+        if (extras != null || description != null) {
+            getExtras().description = description;
+        }
         markAsDirty();
     }
 
@@ -478,7 +625,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public String getDescription() {
-        return description;
+        return extras != null ? extras.description : null;
     }
 
     /*
@@ -488,7 +635,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public boolean isCheckable() {
-        return checkable;
+        return hasFlag(CHECKABLE);
     }
 
     /*
@@ -498,11 +645,12 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public void setCheckable(boolean checkable) throws IllegalStateException {
-        if (hasChildren()) {
+        if (hasChildren() || getChildItemProvider() != null
+                || getDataProviderItems() != null) {
             throw new IllegalStateException(
                     "A menu item with children cannot be checkable");
         }
-        this.checkable = checkable;
+        setFlag(CHECKABLE, checkable);
         markAsDirty();
     }
 
@@ -513,7 +661,7 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public boolean isChecked() {
-        return checked;
+        return hasFlag(CHECKED);
     }
 
     /*
@@ -523,11 +671,141 @@ class ExtMenuItemImpl implements Serializable, ExtMenuItem {
      */
     @Override
     public void setChecked(boolean checked) {
-        this.checked = checked;
+        setFlag(CHECKED, checked);
         markAsDirty();
     }
 
+    /**
+     * Replaces the child items. The items are copied to the child list of
+     * this item, which is returned by {@link #getChildren()} from now on.
+     *
+     * @param children
+     *            the new child items, or null to remove all
+     */
     protected void setChildren(List<ExtMenuItem> children) {
-        this.itsChildren = children;
+        List<ExtMenuItem> oldChildren = null;
+        if (itsChildren != null) {
+            oldChildren = new ArrayList<ExtMenuItem>(itsChildren);
+            itsChildren.clear();
+            itsChildren = null;
+        }
+        if (children != null) {
+            ExtMenuItemList newChildren = newChildList();
+            try {
+                newChildren.addAll(children);
+            } catch (RuntimeException e) {
+                newChildren.clear();
+                if (oldChildren != null) {
+                    itsChildren = newChildList();
+                    itsChildren.addAll(oldChildren);
+                }
+                throw e;
+            }
+            itsChildren = newChildren;
+        }
+    }
+
+    /**
+     * Gets the menu this item is attached to, or null if the item has been
+     * removed or has not been added to a menu yet.
+     *
+     * @return the owning menu or null
+     */
+    AbstractExtMenu getMenu() {
+        return itsMenu;
+    }
+
+    /**
+     * Set the menu this item is attached to. This is called by the menu when
+     * the item is added or removed.
+     *
+     * @param menu
+     *            The owning menu
+     */
+    void setMenu(AbstractExtMenu menu) {
+        itsMenu = menu;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(itsId);
+        out.writeObject(itsText);
+        out.writeInt(flags);
+        out.writeObject(styleName);
+        out.writeObject(url);
+        out.writeObject(itsIcon);
+        ExtMenuCommandRegistry.writeCommand(out, itsCommand);
+
+        out.writeBoolean(extras != null);
+        if (extras != null) {
+            out.writeObject(extras.description);
+            out.writeObject(extras.target);
+            out.writeObject(extras.childItemProvider);
+            out.writeObject(extras.dataProviderItems);
+        }
+
+        out.writeInt(itsChildren != null ? itsChildren.size() : -1);
+        if (itsChildren != null) {
+            for (ExtMenuItem child : itsChildren) {
+                out.writeObject(child);
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in)
+            throws IOException, ClassNotFoundException {
+        itsId = in.readInt();
+        itsText = (String) in.readObject();
+        flags = in.readInt();
+        styleName = (String) in.readObject();
+        url = (String) in.readObject();
+        itsIcon = (Resource) in.readObject();
+        itsCommand = ExtMenuCommandRegistry.readCommand(in);
+
+        if (in.readBoolean()) {
+            extras = new Extras();
+            extras.description = (String) in.readObject();
+            extras.target = (String) in.readObject();
+            extras.childItemProvider = (ChildItemProvider) in.readObject();
+            extras.dataProviderItems = (DataProviderMenuItems<?>) in
+                    .readObject();
+        }
+
+        int childCount = in.readInt();
+        if (childCount >= 0) {
+            itsChildren = newChildList();
+            for (int i = 0; i < childCount; i++) {
+                ExtMenuItem child = (ExtMenuItem) in.readObject();
+                if (child instanceof ExtMenuItemImpl) {
+                    ((ExtMenuItemImpl) child).setParent(this);
+                }
+                itsChildren.add(child);
+            }
+        }
+    }
+
+    /**
+     * Creates a list for the child items, which attaches the items to the
+     * menu of this item. The owner is created with the list, so that items
+     * without child items do not need a field for it.
+     */
+    private ExtMenuItemList newChildList() {
+        return new ExtMenuItemList(new ExtMenuItemList.Owner() {
+            @Override
+            public void itemAdding(ExtMenuItem item) {
+                if (itsMenu != null) {
+                    itsMenu.checkCanAttach(item);
+                    itsMenu.attachItem(item);
+                }
+            }
+
+            @Override
+            public void itemRemoved(ExtMenuItem item) {
+                if (itsMenu != null) {
+                    itsMenu.detachItem(item);
+                }
+            }
+        });
     }
-}// class ExtMenuItem
\ No newline at end of file
+}// class ExtMenuItem
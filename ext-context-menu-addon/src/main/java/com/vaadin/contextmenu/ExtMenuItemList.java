@@ -0,0 +1,327 @@
+package com.vaadin.contextmenu;
+
+import java.io.Serializable;
+import java.util.AbstractSequentialList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The items of a menu or the child items of an item. A doubly linked list
+ * with an index from each item to its node, so that appending, inserting
+ * before a given item, removing an item and checking whether an item is in the
+ * list take constant time. Positional access by index is linear, as in any
+ * linked list.
+ * <p>
+ * An item can only be in the list once; adding it again, also by replacing
+ * another item with it, throws an {@link IllegalArgumentException}. This is
+ * why {@link java.util.Collections#swap(List, int, int)} and
+ * {@link java.util.Collections#reverse(List)} cannot be used on the list;
+ * {@link #sort(Comparator)} reorders the items in place instead.
+ * <p>
+ * The {@link Owner} of the list is told about every item that is added or
+ * removed, also through the iterator or by application code changing the list
+ * returned by {@link ExtMenu#getItems()} or {@link ExtMenuItem#getChildren()},
+ * so that the id index of the menu stays complete.
+ * <p>
+ * The list is not serialized by itself: the menu and the items write their
+ * items as part of the tree.
+ */
+@SuppressWarnings("serial")
+class ExtMenuItemList extends AbstractSequentialList<ExtMenuItem>
+        implements Serializable {
+
+    private static class Node {
+        private ExtMenuItem item;
+        private Node previous;
+        private Node next;
+
+        private Node(ExtMenuItem item) {
+            this.item = item;
+        }
+    }
+
+    /**
+     * Keeps an index of the items of a list up to date.
+     */
+    interface Owner {
+
+        /**
+         * Called before the item is linked to the list.
+         *
+         * @param item
+         *            the item to add
+         * @throws IllegalStateException
+         *             If the item cannot be added, in which case the list is
+         *             not changed.
+         */
+        void itemAdding(ExtMenuItem item) throws IllegalStateException;
+
+        /**
+         * Called after the item has been unlinked from the list.
+         *
+         * @param item
+         *            the removed item
+         */
+        void itemRemoved(ExtMenuItem item);
+    }
+
+    private final transient Owner owner;
+    private transient Node head;
+    private transient Node tail;
+    private final transient Map<ExtMenuItem, Node> nodes = new IdentityHashMap<ExtMenuItem, Node>();
+
+    ExtMenuItemList(Owner owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Inserts the item before the other item, or at the end if the other item
+     * is not in this list.
+     *
+     * @param item
+     *            the item to insert
+     * @param itemToAddBefore
+     *            the item that will be after the inserted item
+     */
+    void addBefore(ExtMenuItem item, ExtMenuItem itemToAddBefore) {
+        Node next = itemToAddBefore != null ? nodes.get(itemToAddBefore)
+                : null;
+        link(item, next);
+    }
+
+    @Override
+    public boolean add(ExtMenuItem item) {
+        link(item, null);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object item) {
+        return nodes.containsKey(item);
+    }
+
+    @Override
+    public boolean remove(Object item) {
+        Node node = nodes.get(item);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Node first = head;
+        head = null;
+        tail = null;
+        nodes.clear();
+        modCount++;
+        for (Node node = first; node != null; node = node.next) {
+            owner.itemRemoved(node.item);
+        }
+    }
+
+    /**
+     * Sorts the items by relinking their nodes, without removing and adding
+     * them again.
+     */
+    @Override
+    public void sort(Comparator<? super ExtMenuItem> comparator) {
+        ExtMenuItem[] items = toArray(new ExtMenuItem[size()]);
+        Arrays.sort(items, comparator);
+        Node previous = null;
+        for (ExtMenuItem item : items) {
+            Node node = nodes.get(item);
+            node.previous = previous;
+            if (previous != null) {
+                previous.next = node;
+            } else {
+                head = node;
+            }
+            previous = node;
+        }
+        if (previous != null) {
+            previous.next = null;
+        }
+        tail = previous;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return nodes.size();
+    }
+
+    @Override
+    public ListIterator<ExtMenuItem> listIterator(int index) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+        return new Itr(index);
+    }
+
+    /**
+     * Links a new node for the item before the given node, or last if the
+     * node is null.
+     */
+    private Node link(ExtMenuItem item, Node next) {
+        if (item == null) {
+            throw new IllegalArgumentException("item cannot be null");
+        }
+        if (nodes.containsKey(item)) {
+            throw new IllegalArgumentException(
+                    "The item is already in the list");
+        }
+        owner.itemAdding(item);
+        Node node = new Node(item);
+        Node previous = next != null ? next.previous : tail;
+        node.previous = previous;
+        node.next = next;
+        if (previous != null) {
+            previous.next = node;
+        } else {
+            head = node;
+        }
+        if (next != null) {
+            next.previous = node;
+        } else {
+            tail = node;
+        }
+        nodes.put(item, node);
+        modCount++;
+        return node;
+    }
+
+    private void unlink(Node node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        } else {
+            tail = node.previous;
+        }
+        nodes.remove(node.item);
+        modCount++;
+        owner.itemRemoved(node.item);
+    }
+
+    private class Itr implements ListIterator<ExtMenuItem> {
+        private Node next;
+        private Node lastReturned;
+        private int nextIndex;
+        private int expectedModCount = modCount;
+
+        private Itr(int index) {
+            next = head;
+            for (int i = 0; i < index; i++) {
+                next = next.next;
+            }
+            nextIndex = index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ExtMenuItem next() {
+            checkForComodification();
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = next;
+            next = next.next;
+            nextIndex++;
+            return lastReturned.item;
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return next != head;
+        }
+
+        @Override
+        public ExtMenuItem previous() {
+            checkForComodification();
+            if (!hasPrevious()) {
+                throw new NoSuchElementException();
+            }
+            next = next != null ? next.previous : tail;
+            lastReturned = next;
+            nextIndex--;
+            return lastReturned.item;
+        }
+
+        @Override
+        public int nextIndex() {
+            return nextIndex;
+        }
+
+        @Override
+        public int previousIndex() {
+            return nextIndex - 1;
+        }
+
+        @Override
+        public void remove() {
+            checkForComodification();
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            if (next == lastReturned) {
+                // after previous()
+                next = lastReturned.next;
+            } else {
+                nextIndex--;
+            }
+            unlink(lastReturned);
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+
+        @Override
+        public void set(ExtMenuItem item) {
+            checkForComodification();
+            if (lastReturned == null) {
+                throw new IllegalStateException();
+            }
+            Node replaced = lastReturned;
+            if (replaced.item == item) {
+                return;
+            }
+            Node inserted = link(item, replaced);
+            if (next == replaced) {
+                next = inserted;
+            }
+            unlink(replaced);
+            lastReturned = inserted;
+            expectedModCount = modCount;
+        }
+
+        @Override
+        public void add(ExtMenuItem item) {
+            checkForComodification();
+            link(item, next);
+            nextIndex++;
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
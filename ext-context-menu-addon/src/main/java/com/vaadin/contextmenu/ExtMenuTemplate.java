@@ -0,0 +1,446 @@
+package com.vaadin.contextmenu;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vaadin.contextmenu.ExtMenu.Command;
+import com.vaadin.server.Resource;
+
+/**
+ * An immutable tree of menu items that can be defined once and added to the
+ * menus of many sessions with {@link AbstractExtMenu#addItems(ExtMenuTemplate)}.
+ * Each menu only keeps a small view of every template item, holding the
+ * properties that can differ between sessions: whether the item is enabled,
+ * checked and visible. All other properties, and the commands, are shared.
+ * <p>
+ * A template is safe to use from many threads once built. The commands are
+ * shared too, so they must not keep per-session state; they get the clicked
+ * item of the session as a parameter.
+ * <p>
+ * A template built with a name is registered under it, and menus serialized
+ * with the session, e.g. for session replication, only refer to the template
+ * by name and to its items by their {@link Item#getIndex() index}. The
+ * template must then be built with the same name and items on the node that
+ * deserializes the session, in any order with respect to other templates.
+ * The ids of the items are allocated by each menu the template is added to,
+ * and serialized with the menu.
+ */
+@SuppressWarnings("serial")
+public final class ExtMenuTemplate implements Serializable {
+
+    private static final Map<String, ExtMenuTemplate> namedTemplates = new ConcurrentHashMap<String, ExtMenuTemplate>();
+
+    private final String name;
+    private final List<Item> items;
+    /** All items in depth-first order, parents before their children. */
+    private final List<Item> itemsByIndex;
+
+    private ExtMenuTemplate(Builder builder) {
+        name = builder.name;
+        List<Item> byIndex = new ArrayList<Item>();
+        items = buildItems(builder.items, byIndex);
+        itemsByIndex = Collections.unmodifiableList(byIndex);
+    }
+
+    private List<Item> buildItems(List<ItemBuilder> builders,
+            List<Item> byIndex) {
+        if (builders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Item> built = new ArrayList<Item>(builders.size());
+        for (ItemBuilder builder : builders) {
+            int index = byIndex.size();
+            // reserve the index before the children take theirs
+            byIndex.add(null);
+            Item item = new Item(this, index, builder,
+                    buildItems(builder.children, byIndex));
+            byIndex.set(index, item);
+            built.add(item);
+        }
+        return Collections.unmodifiableList(built);
+    }
+
+    /**
+     * Starts building a template that is serialized with the menus it is
+     * added to.
+     *
+     * @return the builder of the template
+     */
+    public static Builder builder() {
+        return new Builder(null);
+    }
+
+    /**
+     * Starts building a template that is registered under the name when it is
+     * built. Menus refer to the template by name when they are serialized.
+     *
+     * @param name
+     *            the name of the template, unique within the application
+     * @return the builder of the template
+     */
+    public static Builder builder(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name cannot be null");
+        }
+        return new Builder(name);
+    }
+
+    /**
+     * Gets the name of the template.
+     *
+     * @return the name, or null if the template is not registered
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the top level items of the template.
+     *
+     * @return an unmodifiable list of the items
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * Removes a named template from the registry, so that a template with the
+     * name can be built again.
+     *
+     * @param name
+     *            the name of the template
+     */
+    static void unregister(String name) {
+        namedTemplates.remove(name);
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        return name != null ? new TemplateReference(name, -1) : this;
+    }
+
+    private static ExtMenuTemplate findNamedTemplate(String name)
+            throws InvalidObjectException {
+        ExtMenuTemplate template = namedTemplates.get(name);
+        if (template == null) {
+            throw new InvalidObjectException(
+                    "No menu template has been built with the name " + name);
+        }
+        return template;
+    }
+
+    /**
+     * Refers to a named template, or an item of it by index, in a serialized
+     * menu.
+     */
+    private static class TemplateReference implements Serializable {
+        private final String name;
+        /** The index of the item, or -1 for the template itself. */
+        private final int itemIndex;
+
+        private TemplateReference(String name, int itemIndex) {
+            this.name = name;
+            this.itemIndex = itemIndex;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            ExtMenuTemplate template = findNamedTemplate(name);
+            if (itemIndex < 0) {
+                return template;
+            }
+            if (itemIndex >= template.itemsByIndex.size()) {
+                throw new InvalidObjectException("The menu template " + name
+                        + " has no item at index " + itemIndex);
+            }
+            return template.itemsByIndex.get(itemIndex);
+        }
+    }
+
+    /**
+     * An immutable item of a template.
+     */
+    public static final class Item implements Serializable {
+        private final ExtMenuTemplate template;
+        private final int index;
+        private final String text;
+        private final Resource icon;
+        private final Command command;
+        private final String description;
+        private final String styleName;
+        private final boolean separator;
+        private final boolean checkable;
+        private final boolean checked;
+        private final boolean enabled;
+        private final boolean visible;
+        private final List<Item> children;
+
+        private Item(ExtMenuTemplate template, int index, ItemBuilder builder,
+                List<Item> children) {
+            this.template = template;
+            this.index = index;
+            this.children = children;
+            text = builder.text;
+            icon = builder.icon;
+            command = builder.command;
+            description = builder.description;
+            styleName = builder.styleName;
+            separator = builder.separator;
+            checkable = builder.checkable;
+            checked = builder.checked;
+            enabled = builder.enabled;
+            visible = builder.visible;
+        }
+
+        /**
+         * Gets the position of the item in the template in depth-first
+         * order, counting parents before their children. Together with the
+         * name of the template, the index identifies the item in serialized
+         * menus.
+         *
+         * @return the index of the item within the template
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public Resource getIcon() {
+            return icon;
+        }
+
+        public Command getCommand() {
+            return command;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getStyleName() {
+            return styleName;
+        }
+
+        public boolean isSeparator() {
+            return separator;
+        }
+
+        public boolean isCheckable() {
+            return checkable;
+        }
+
+        /**
+         * Gets whether the item is initially checked in the menus the
+         * template is added to.
+         *
+         * @return true if the item is checked by default
+         */
+        public boolean isChecked() {
+            return checked;
+        }
+
+        /**
+         * Gets whether the item is initially enabled in the menus the
+         * template is added to.
+         *
+         * @return true if the item is enabled by default
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Gets whether the item is initially visible in the menus the
+         * template is added to.
+         *
+         * @return true if the item is visible by default
+         */
+        public boolean isVisible() {
+            return visible;
+        }
+
+        /**
+         * Gets the child items.
+         *
+         * @return an unmodifiable list of the child items, empty if there are
+         *         none
+         */
+        public List<Item> getChildren() {
+            return children;
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            return template.name != null
+                    ? new TemplateReference(template.name, index) : this;
+        }
+    }
+
+    /**
+     * Builds a template. Not thread-safe; the built template is.
+     */
+    public static final class Builder {
+        private final String name;
+        private final List<ItemBuilder> items = new ArrayList<ItemBuilder>();
+        private boolean built;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Adds a top level item. Icon and command can be null, but a caption
+         * must be given.
+         *
+         * @param caption
+         *            the text for the menu item
+         * @param icon
+         *            the icon for the menu item
+         * @param command
+         *            the command for the menu item
+         * @return the builder of the item, for setting its other properties
+         *         and adding child items
+         */
+        public ItemBuilder addItem(String caption, Resource icon,
+                Command command) {
+            ItemBuilder item = new ItemBuilder(caption, icon, command);
+            items.add(item);
+            return item;
+        }
+
+        /**
+         * Adds a top level separator.
+         *
+         * @return this builder
+         */
+        public Builder addSeparator() {
+            addItem("", null, null).separator = true;
+            return this;
+        }
+
+        /**
+         * Builds the template, registering it if it has a name.
+         *
+         * @return the template
+         * @throws IllegalStateException
+         *             If the builder has already been built, or another
+         *             template has been built with the same name.
+         */
+        public ExtMenuTemplate build() throws IllegalStateException {
+            if (built) {
+                throw new IllegalStateException(
+                        "The template has already been built");
+            }
+            built = true;
+            ExtMenuTemplate template = new ExtMenuTemplate(this);
+            if (name != null
+                    && namedTemplates.putIfAbsent(name, template) != null) {
+                throw new IllegalStateException(
+                        "A menu template named " + name + " already exists");
+            }
+            return template;
+        }
+    }
+
+    /**
+     * Builds an item of a template.
+     */
+    public static final class ItemBuilder {
+        private final String text;
+        private final Resource icon;
+        private final Command command;
+        private String description;
+        private String styleName;
+        private boolean separator;
+        private boolean checkable;
+        private boolean checked;
+        private boolean enabled = true;
+        private boolean visible = true;
+        private final List<ItemBuilder> children = new ArrayList<ItemBuilder>();
+
+        private ItemBuilder(String caption, Resource icon, Command command) {
+            if (caption == null) {
+                throw new IllegalArgumentException("caption cannot be null");
+            }
+            text = caption;
+            this.icon = icon;
+            this.command = command;
+        }
+
+        /**
+         * Adds a child item. Icon and command can be null, but a caption must
+         * be given.
+         *
+         * @param caption
+         *            the text for the menu item
+         * @param icon
+         *            the icon for the menu item
+         * @param command
+         *            the command for the menu item
+         * @return the builder of the child item
+         * @throws IllegalStateException
+         *             If this item is checkable and thus cannot have children.
+         */
+        public ItemBuilder addItem(String caption, Resource icon,
+                Command command) throws IllegalStateException {
+            if (checkable) {
+                throw new IllegalStateException(
+                        "A checkable item cannot have children");
+            }
+            ItemBuilder item = new ItemBuilder(caption, icon, command);
+            children.add(item);
+            return item;
+        }
+
+        /**
+         * Adds a separator to the child items.
+         *
+         * @return this item builder
+         */
+        public ItemBuilder addSeparator() {
+            addItem("", null, null).separator = true;
+            return this;
+        }
+
+        public ItemBuilder setDescription(String description) {
+            this.description = description;
+            return this;
+        }
+
+        public ItemBuilder setStyleName(String styleName) {
+            this.styleName = styleName;
+            return this;
+        }
+
+        public ItemBuilder setCheckable(boolean checkable)
+                throws IllegalStateException {
+            if (!children.isEmpty()) {
+                throw new IllegalStateException(
+                        "A menu item with children cannot be checkable");
+            }
+            this.checkable = checkable;
+            return this;
+        }
+
+        public ItemBuilder setChecked(boolean checked) {
+            this.checked = checked;
+            return this;
+        }
+
+        public ItemBuilder setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+
+        public ItemBuilder setVisible(boolean visible) {
+            this.visible = visible;
+            return this;
+        }
+    }
+}
@@ -1,52 +1,1036 @@
 package com.vaadin.contextmenu;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.EventListener;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 import com.vaadin.contextmenu.ExtContextExtMenu.ContextMenuOpenListener.ContextMenuOpenEvent;
 import com.vaadin.contextmenu.GridExtContextExtMenu.GridContextMenuOpenListener.GridContextMenuOpenEvent;
+import com.vaadin.contextmenu.client.MenuItemOverrides;
+import com.vaadin.server.SerializableFunction;
+import com.vaadin.server.SerializablePredicate;
+import com.vaadin.server.SerializableSupplier;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.Registration;
 import com.vaadin.shared.ui.grid.GridConstants.Section;
 import com.vaadin.ui.Grid;
 import com.vaadin.ui.Grid.Column;
 import com.vaadin.ui.Grid.GridContextClickEvent;
+import com.vaadin.ui.UI;
 
 @SuppressWarnings("serial")
 public class GridExtContextExtMenu<T> extends ExtContextExtMenu {
 
+    /**
+     * An action run for all the items a grid menu was opened for, i.e. the
+     * selected rows, instead of once per row. The items are given in batches,
+     * see {@link GridExtContextExtMenu#setBulkBatchSize(int)}.
+     * <p>
+     * When run asynchronously, see
+     * {@link GridExtContextExtMenu#setBulkCommandsAsync(boolean)}, the batches
+     * are processed in the threads of the command executor, possibly in
+     * parallel and without the session lock. Use {@link UI#access(Runnable)}
+     * to update the UI from the command in that case.
+     */
+    @FunctionalInterface
+    public interface BulkCommand<T> extends Serializable {
+
+        /**
+         * Processes one batch of the items.
+         *
+         * @param selectedItem
+         *            the clicked menu item
+         * @param items
+         *            the next items to process, never empty
+         */
+        public void menuSelected(ExtMenuItem selectedItem, List<T> items);
+    }
+
+    /**
+     * Notified of the progress of a bulk command. When the command is run
+     * asynchronously, the listener is still called with the session locked.
+     */
+    public interface BulkProgressListener extends Serializable {
+
+        /**
+         * Called after each processed batch.
+         *
+         * @param selectedItem
+         *            the clicked menu item
+         * @param processed
+         *            the number of items processed so far
+         * @param total
+         *            the number of items to process, or -1 if not known
+         */
+        public void progress(ExtMenuItem selectedItem, int processed,
+                int total);
+
+        /**
+         * Called once when all the batches have been processed, or after the
+         * first batch that failed.
+         *
+         * @param selectedItem
+         *            the clicked menu item
+         * @param processed
+         *            the number of items processed successfully
+         * @param failure
+         *            the exception thrown by the command, or null
+         */
+        public default void completed(ExtMenuItem selectedItem,
+                int processed, Throwable failure) {
+        }
+    }
+
+    /** The default for {@link #setBulkBatchSize(int)}. */
+    public static final int DEFAULT_BULK_BATCH_SIZE = 500;
+
+    private final Grid<T> grid;
+
+    private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+    private boolean bulkCommandsAsync;
+    private int bulkParallelism = 1;
+    private BulkProgressListener bulkProgressListener;
+    private SerializableSupplier<Stream<T>> bulkItemsProvider;
+
     public GridExtContextExtMenu(Grid<T> parentComponent) {
         super(parentComponent, true);
+        grid = parentComponent;
+    }
+
+    /**
+     * The row dependent properties and the bulk command of an item.
+     */
+    private static class ItemBinding<T> implements Serializable {
+        private final ExtMenuItem item;
+        private SerializablePredicate<T> enabled;
+        private SerializablePredicate<T> visible;
+        private SerializablePredicate<T> checked;
+        private SerializableFunction<T, String> caption;
+        private BulkCommand<T> bulkCommand;
+
+        private ItemBinding(ExtMenuItem item) {
+            this.item = item;
+        }
+
+        private boolean hasOverrides() {
+            return enabled != null || visible != null || checked != null
+                    || caption != null;
+        }
+
+        private boolean isEmpty() {
+            return !hasOverrides() && bulkCommand == null;
+        }
+
+        /**
+         * Checks whether the item can be clicked on the row, by the predicates
+         * or, without a row or a predicate, by the state of the item.
+         *
+         * @param row
+         *            the row the menu was opened on, or null
+         */
+        private boolean isClickable(T row) {
+            boolean isEnabled = row != null && enabled != null
+                    ? enabled.test(row) : item.isEnabled();
+            boolean isVisible = row != null && visible != null
+                    ? visible.test(row) : item.isVisible();
+            return isEnabled && isVisible;
+        }
+    }
+
+    /** Item bindings by item id, in the order they were added. */
+    private final Map<Integer, ItemBinding<T>> itemBindings = new LinkedHashMap<Integer, ItemBinding<T>>();
+
+    /**
+     * The open listeners of one section of the grid, for any cell and for the
+     * cells of a column.
+     */
+    private static class SectionListeners<T> implements Serializable {
+        private final List<GridContextMenuOpenListener<T>> listeners = new ArrayList<GridContextMenuOpenListener<T>>();
+        private Map<Column<T, ?>, List<GridContextMenuOpenListener<T>>> columnListeners;
+    }
+
+    /**
+     * The grid open listeners by section, dispatched to by the one listener
+     * registered to this menu.
+     */
+    private final Map<Section, SectionListeners<T>> gridListeners = new EnumMap<Section, SectionListeners<T>>(
+            Section.class);
+    /** The registration of the dispatching listener, null if not added. */
+    private Registration gridDispatchRegistration;
+
+    /**
+     * The roots of the menu trees of one section of the grid, for any cell
+     * and by column id.
+     */
+    private static class SectionMenus implements Serializable {
+        private ExtMenuItem sectionMenu;
+        private Map<String, ExtMenuItem> columnMenus;
+    }
+
+    private final Map<Section, SectionMenus> menuTrees = new EnumMap<Section, SectionMenus>(
+            Section.class);
+
+    /** The row the menu was last opened for, null if not opened on a row. */
+    private T contextItem;
+
+    /**
+     * Sets a predicate that tells whether the item is enabled when the menu
+     * is opened on a row. The predicate is evaluated on the server when the
+     * menu is opened, and only the result is sent to the client. When the
+     * menu is opened elsewhere, e.g. on the header, the item is enabled as set
+     * with {@link ExtMenuItem#setEnabled(boolean)}.
+     *
+     * @param item
+     *            an item of this menu
+     * @param enabled
+     *            the predicate for the row item, or null to remove
+     */
+    public void setItemEnabledPredicate(ExtMenuItem item,
+            SerializablePredicate<T> enabled) {
+        getItemBinding(item).enabled = enabled;
+        itemBindingChanged(item);
+    }
+
+    /**
+     * Sets a predicate that tells whether the item is shown when the menu is
+     * opened on a row. See
+     * {@link #setItemEnabledPredicate(ExtMenuItem, SerializablePredicate)}.
+     *
+     * @param item
+     *            an item of this menu
+     * @param visible
+     *            the predicate for the row item, or null to remove
+     */
+    public void setItemVisiblePredicate(ExtMenuItem item,
+            SerializablePredicate<T> visible) {
+        getItemBinding(item).visible = visible;
+        itemBindingChanged(item);
+    }
+
+    /**
+     * Sets a predicate that tells whether the checkable item is checked when
+     * the menu is opened on a row. Clicking such an item does not toggle its
+     * checked state, but only runs its command, which is expected to change
+     * the row item. See
+     * {@link #setItemEnabledPredicate(ExtMenuItem, SerializablePredicate)}.
+     *
+     * @param item
+     *            an item of this menu
+     * @param checked
+     *            the predicate for the row item, or null to remove
+     */
+    public void setItemCheckedPredicate(ExtMenuItem item,
+            SerializablePredicate<T> checked) {
+        getItemBinding(item).checked = checked;
+        itemBindingChanged(item);
+    }
+
+    /**
+     * Sets a generator for the caption of the item when the menu is opened on
+     * a row. See
+     * {@link #setItemEnabledPredicate(ExtMenuItem, SerializablePredicate)}.
+     *
+     * @param item
+     *            an item of this menu
+     * @param captionGenerator
+     *            the caption generator for the row item, or null to remove
+     */
+    public void setItemCaptionGenerator(ExtMenuItem item,
+            SerializableFunction<T, String> captionGenerator) {
+        getItemBinding(item).caption = captionGenerator;
+        itemBindingChanged(item);
+    }
+
+    /**
+     * Gets the row item the menu was last opened on, e.g. for the command of
+     * an item with row dependent properties.
+     *
+     * @return the row item, or null if the menu was last opened elsewhere
+     */
+    public T getContextItem() {
+        return contextItem;
+    }
+
+    /**
+     * Sets a command that is run for all the items the menu was opened for
+     * when the item is clicked, instead of the command of the item. When the
+     * menu is opened on a selected row, or outside the rows, the command gets
+     * the selected items of the grid; when it is opened on a row that is not
+     * selected, only that row. When the menu is opened on the client, see
+     * {@link #setOpenOnClient(boolean)}, the clicked row is not known and the
+     * command always gets the selected items. See
+     * {@link #setBulkItemsProvider(SerializableSupplier)} for selections that
+     * are not kept in memory.
+     *
+     * @param item
+     *            an item of this menu
+     * @param command
+     *            the command, or null to remove
+     */
+    public void setItemBulkCommand(ExtMenuItem item, BulkCommand<T> command) {
+        getItemBinding(item).bulkCommand = command;
+        itemBindingChanged(item);
+    }
+
+    /**
+     * Sets the number of items given to a bulk command at a time. Defaults to
+     * {@value #DEFAULT_BULK_BATCH_SIZE}.
+     *
+     * @param batchSize
+     *            the maximum number of items in a batch, at least 1
+     */
+    public void setBulkBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "batchSize must be at least 1, was " + batchSize);
+        }
+        bulkBatchSize = batchSize;
+    }
+
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    /**
+     * Sets whether bulk commands are run with the executor of the
+     * asynchronous commands of this menu, see
+     * {@link #setCommandExecutor(Executor)}. The batches are then processed by
+     * {@link #setBulkParallelism(int) a fixed number of tasks}, each taking
+     * the next batch from the items when it is done with the previous one, so
+     * only the batches being processed are in memory. By default the batches
+     * are processed one after the other in the request thread.
+     *
+     * @param async
+     *            true to run bulk commands with the command executor
+     */
+    public void setBulkCommandsAsync(boolean async) {
+        bulkCommandsAsync = async;
+    }
+
+    public boolean isBulkCommandsAsync() {
+        return bulkCommandsAsync;
+    }
+
+    /**
+     * Sets the number of batches of an asynchronous bulk command processed at
+     * the same time, i.e. the number of tasks submitted to the command
+     * executor for one command. Defaults to 1, which processes the batches
+     * one after the other.
+     *
+     * @param parallelism
+     *            the number of parallel tasks, at least 1
+     */
+    public void setBulkParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "parallelism must be at least 1, was " + parallelism);
+        }
+        bulkParallelism = parallelism;
+    }
+
+    public int getBulkParallelism() {
+        return bulkParallelism;
+    }
+
+    /**
+     * Sets the listener notified of the progress of bulk commands.
+     *
+     * @param listener
+     *            the listener, or null to remove
+     */
+    public void setBulkProgressListener(BulkProgressListener listener) {
+        bulkProgressListener = listener;
+    }
+
+    /**
+     * Sets the source of the selected items for bulk commands, e.g. a query
+     * to the backend when all the rows of a lazily loaded grid are selected.
+     * The stream is consumed one batch at a time, in the request thread or,
+     * when {@link #setBulkCommandsAsync(boolean) asynchronous}, in the threads
+     * of the command executor, so
+     * the whole selection never needs to be in memory. The stream is closed
+     * when the command has completed. By default the selected items of the
+     * grid are used.
+     *
+     * @param provider
+     *            the provider of the selected items, or null to use the
+     *            selection of the grid
+     */
+    public void setBulkItemsProvider(
+            SerializableSupplier<Stream<T>> provider) {
+        bulkItemsProvider = provider;
+    }
+
+    /**
+     * Gets the root of the items shown when the menu is opened on the section
+     * of the grid, instead of the top level items of this menu. Add the items
+     * with {@link ExtMenuItem#addItem(String, ExtMenu.Command)}. The root is
+     * created on the first call. It is not one of the {@link #getItems()
+     * items} of this menu, so {@link #removeItems()} keeps it; remove it with
+     * {@link #removeSectionMenu(Section)} to show the top level items again.
+     * <p>
+     * The items of all the trees are sent to the client once, and opening the
+     * menu on different sections or columns only selects which tree is shown,
+     * without changing the items.
+     *
+     * @param section
+     *            the section of the grid
+     * @return the root item of the menu for the section
+     */
+    public ExtMenuItem getSectionMenu(Section section) {
+        SectionMenus sectionMenus = getSectionMenus(section);
+        if (sectionMenus.sectionMenu == null) {
+            sectionMenus.sectionMenu = addMenuTree();
+            updateMenuTrees();
+        }
+        return sectionMenus.sectionMenu;
+    }
+
+    /**
+     * Removes the menu of the section, if any, with its items. The top level
+     * items of this menu are then shown on the section, except on the columns
+     * that have a menu of their own.
+     *
+     * @param section
+     *            the section of the grid
+     */
+    public void removeSectionMenu(Section section) {
+        SectionMenus sectionMenus = menuTrees.get(section);
+        if (sectionMenus != null && sectionMenus.sectionMenu != null) {
+            removeMenuTree(sectionMenus.sectionMenu);
+            sectionMenus.sectionMenu = null;
+            updateMenuTrees();
+        }
     }
 
-    private void addGridSectionContextMenuListener(final Section section,
-            final GridContextMenuOpenListener<T> listener) {
-        addContextMenuOpenListener((final ContextMenuOpenEvent event) -> {
-            if (event
-                    .getContextClickEvent() instanceof GridContextClickEvent) {
-                @SuppressWarnings("unchecked")
-                GridContextClickEvent<T> gridEvent = (GridContextClickEvent<T>) event
-                        .getContextClickEvent();
-                if (gridEvent.getSection() == section) {
-                    listener.onContextMenuOpen(
-                            new GridContextMenuOpenEvent<>(
-                                    GridExtContextExtMenu.this, gridEvent));
+    /**
+     * Gets the root of the items shown when the menu is opened on a cell of
+     * the column in the section, instead of the menu of the section or the
+     * top level items of this menu. See {@link #getSectionMenu(Section)}.
+     *
+     * @param section
+     *            the section of the grid
+     * @param column
+     *            the column of the grid, with an id
+     * @return the root item of the menu for the column
+     */
+    public ExtMenuItem getColumnMenu(Section section, Column<T, ?> column) {
+        checkColumnId(column);
+        SectionMenus sectionMenus = getSectionMenus(section);
+        if (sectionMenus.columnMenus == null) {
+            sectionMenus.columnMenus = new HashMap<String, ExtMenuItem>();
+        }
+        ExtMenuItem columnMenu = sectionMenus.columnMenus.get(column.getId());
+        if (columnMenu == null) {
+            columnMenu = addMenuTree();
+            sectionMenus.columnMenus.put(column.getId(), columnMenu);
+            updateMenuTrees();
+        }
+        return columnMenu;
+    }
+
+    /**
+     * Removes the menu of the column in the section, if any, with its items.
+     * The menu of the section, or the top level items of this menu, are then
+     * shown on the cells of the column.
+     *
+     * @param section
+     *            the section of the grid
+     * @param column
+     *            the column of the grid, with an id
+     */
+    public void removeColumnMenu(Section section, Column<T, ?> column) {
+        checkColumnId(column);
+        SectionMenus sectionMenus = menuTrees.get(section);
+        if (sectionMenus != null && sectionMenus.columnMenus != null) {
+            ExtMenuItem columnMenu = sectionMenus.columnMenus
+                    .remove(column.getId());
+            if (columnMenu != null) {
+                removeMenuTree(columnMenu);
+                updateMenuTrees();
+            }
+        }
+    }
+
+    private static void checkColumnId(Column<?, ?> column) {
+        if (column == null || column.getId() == null) {
+            throw new IllegalArgumentException(
+                    "The column must have an id, see Column.setId");
+        }
+    }
+
+    private SectionMenus getSectionMenus(Section section) {
+        if (section == null) {
+            throw new IllegalArgumentException("section cannot be null");
+        }
+        SectionMenus sectionMenus = menuTrees.get(section);
+        if (sectionMenus == null) {
+            sectionMenus = new SectionMenus();
+            menuTrees.put(section, sectionMenus);
+        }
+        return sectionMenus;
+    }
+
+    /**
+     * Forgets the sections without menu trees and sends the ids of the
+     * remaining roots to the client.
+     */
+    private void updateMenuTrees() {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Iterator<SectionMenus> i = menuTrees.values().iterator(); i
+                .hasNext();) {
+            SectionMenus sectionMenus = i.next();
+            if (sectionMenus.columnMenus != null
+                    && sectionMenus.columnMenus.isEmpty()) {
+                sectionMenus.columnMenus = null;
+            }
+            if (sectionMenus.sectionMenu == null
+                    && sectionMenus.columnMenus == null) {
+                i.remove();
+                continue;
+            }
+            if (sectionMenus.sectionMenu != null) {
+                ids.add(sectionMenus.sectionMenu.getId());
+            }
+            if (sectionMenus.columnMenus != null) {
+                for (ExtMenuItem columnMenu : sectionMenus.columnMenus
+                        .values()) {
+                    ids.add(columnMenu.getId());
                 }
             }
-        });
+        }
+
+        int[] treeIds = new int[ids.size()];
+        for (int i = 0; i < treeIds.length; i++) {
+            treeIds[i] = ids.get(i);
+        }
+        if (!Arrays.equals(treeIds, getState(false).menuTreeIds)) {
+            getState().menuTreeIds = treeIds;
+        }
+        updateOpenOnClient();
+    }
+
+    @Override
+    ExtMenuItem getMenuTree(ContextMenuOpenEvent event) {
+        if (menuTrees.isEmpty() || !(event
+                .getContextClickEvent() instanceof GridContextClickEvent)) {
+            return null;
+        }
+        GridContextClickEvent<?> gridEvent = (GridContextClickEvent<?>) event
+                .getContextClickEvent();
+        SectionMenus sectionMenus = menuTrees.get(gridEvent.getSection());
+        if (sectionMenus == null) {
+            return null;
+        }
+        ExtMenuItem menuTree = null;
+        if (sectionMenus.columnMenus != null && gridEvent.getColumn() != null
+                && gridEvent.getColumn().getId() != null) {
+            menuTree = sectionMenus.columnMenus
+                    .get(gridEvent.getColumn().getId());
+        }
+        if (menuTree == null) {
+            menuTree = sectionMenus.sectionMenu;
+        }
+        return menuTree;
+    }
+
+    private ItemBinding<T> getItemBinding(ExtMenuItem item) {
+        if (item == null) {
+            throw new IllegalArgumentException("item cannot be null");
+        }
+        ItemBinding<T> binding = itemBindings.get(item.getId());
+        if (binding == null || binding.item != item) {
+            binding = new ItemBinding<T>(item);
+            itemBindings.put(item.getId(), binding);
+        }
+        return binding;
+    }
+
+    private void itemBindingChanged(ExtMenuItem item) {
+        if (itemBindings.get(item.getId()).isEmpty()) {
+            itemBindings.remove(item.getId());
+        }
+        updateOpenOnClient();
+    }
+
+    /**
+     * Gets the binding of an item that is still in this menu, forgetting the
+     * bindings of removed items.
+     */
+    private ItemBinding<T> getActiveBinding(int itemId) {
+        ItemBinding<T> binding = itemBindings.get(itemId);
+        if (binding != null && !containsItem(binding.item)) {
+            itemBindings.remove(itemId);
+            return null;
+        }
+        return binding;
+    }
+
+    @Override
+    boolean hasItemOverrides() {
+        if (!menuTrees.isEmpty()) {
+            return true;
+        }
+        // bulk commands alone do not depend on the row the menu is opened on
+        for (ItemBinding<T> binding : itemBindings.values()) {
+            if (binding.hasOverrides()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    MenuItemOverrides createItemOverrides(ContextMenuOpenEvent event) {
+        contextItem = null;
+        if (!(event.getContextClickEvent() instanceof GridContextClickEvent)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        GridContextClickEvent<T> gridEvent = (GridContextClickEvent<T>) event
+                .getContextClickEvent();
+        if (gridEvent.getSection() != Section.BODY
+                || gridEvent.getItem() == null) {
+            return null;
+        }
+        contextItem = gridEvent.getItem();
+
+        List<ItemBinding<T>> bindings = new ArrayList<ItemBinding<T>>();
+        for (Iterator<ItemBinding<T>> i = itemBindings.values().iterator(); i
+                .hasNext();) {
+            ItemBinding<T> binding = i.next();
+            if (!containsItem(binding.item)) {
+                i.remove();
+            } else if (binding.hasOverrides()) {
+                bindings.add(binding);
+            }
+        }
+        if (bindings.isEmpty()) {
+            return null;
+        }
+
+        MenuItemOverrides overrides = new MenuItemOverrides();
+        overrides.ids = new int[bindings.size()];
+        overrides.masks = new int[bindings.size()];
+        overrides.values = new int[bindings.size()];
+        for (int i = 0; i < bindings.size(); i++) {
+            ItemBinding<T> binding = bindings.get(i);
+            int mask = 0;
+            int values = 0;
+            if (binding.enabled != null) {
+                mask |= MenuItemOverrides.ENABLED;
+                values |= binding.enabled.test(contextItem)
+                        ? MenuItemOverrides.ENABLED : 0;
+            }
+            if (binding.visible != null) {
+                mask |= MenuItemOverrides.VISIBLE;
+                values |= binding.visible.test(contextItem)
+                        ? MenuItemOverrides.VISIBLE : 0;
+            }
+            if (binding.checked != null) {
+                mask |= MenuItemOverrides.CHECKED;
+                values |= binding.checked.test(contextItem)
+                        ? MenuItemOverrides.CHECKED : 0;
+            }
+            if (binding.caption != null) {
+                mask |= MenuItemOverrides.TEXT;
+                if (overrides.texts == null) {
+                    overrides.texts = new String[bindings.size()];
+                }
+                overrides.texts[i] = binding.caption.apply(contextItem);
+            }
+            overrides.ids[i] = binding.item.getId();
+            overrides.masks[i] = mask;
+            overrides.values[i] = values;
+        }
+        return overrides;
+    }
+
+    @Override
+    void itemClicked(int itemId) {
+        ItemBinding<T> binding = getActiveBinding(itemId);
+        if (binding == null) {
+            super.itemClicked(itemId);
+            return;
+        }
+        // the client only shows what the predicates allowed, but a click may
+        // have been sent before the client got the disabled state
+        if (!binding.isClickable(contextItem)) {
+            return;
+        }
+        if (binding.bulkCommand != null) {
+            runBulkCommand(binding.item, binding.bulkCommand);
+        } else if (contextItem != null && binding.checked != null) {
+            runCommand(binding.item);
+        } else {
+            selectItem(binding.item);
+        }
+    }
+
+    private void runBulkCommand(ExtMenuItem item, BulkCommand<T> command) {
+        Stream<T> items;
+        int total;
+        Set<T> selection = grid.getSelectedItems();
+        // the row of the last opening on the server is stale when the client
+        // has opened the menu
+        T row = getState(false).openOnClient ? null : contextItem;
+        if (row != null && !selection.contains(row)) {
+            items = Stream.of(row);
+            total = 1;
+        } else if (bulkItemsProvider != null) {
+            items = bulkItemsProvider.get();
+            total = -1;
+        } else {
+            items = selection.stream();
+            total = selection.size();
+        }
+
+        if (!bulkCommandsAsync) {
+            try (Stream<T> closedItems = items) {
+                runBatches(item, command, closedItems.iterator(), total);
+            }
+        } else {
+            // closed by the last task
+            submitBatches(item, command, items, total,
+                    getCommandExecutorOrDefault());
+        }
+    }
+
+    private List<T> nextBatch(Iterator<T> items) {
+        if (!items.hasNext()) {
+            return Collections.emptyList();
+        }
+        List<T> batch = new ArrayList<T>(bulkBatchSize);
+        while (batch.size() < bulkBatchSize && items.hasNext()) {
+            batch.add(items.next());
+        }
+        return batch;
+    }
+
+    private void runBatches(ExtMenuItem item, BulkCommand<T> command,
+            Iterator<T> items, int total) {
+        BulkProgressListener listener = bulkProgressListener;
+        int processed = 0;
+        List<T> batch;
+        while (!(batch = nextBatch(items)).isEmpty()) {
+            try {
+                command.menuSelected(item, batch);
+            } catch (RuntimeException e) {
+                if (listener == null) {
+                    throw e;
+                }
+                listener.completed(item, processed, e);
+                return;
+            }
+            processed += batch.size();
+            if (listener != null) {
+                listener.progress(item, processed, total);
+            }
+        }
+        if (listener != null) {
+            listener.completed(item, processed, null);
+        }
+    }
+
+    private void submitBatches(ExtMenuItem item, BulkCommand<T> command,
+            Stream<T> items, int total, Executor executor) {
+        new BulkRun(item, command, items, total).start(executor,
+                bulkParallelism);
+    }
+
+    /**
+     * A bulk command run with an executor. A fixed number of workers take the
+     * batches from the items one at a time, so at most that many batches are
+     * in memory and processed at the same time.
+     */
+    private final class BulkRun {
+        private final ExtMenuItem item;
+        private final BulkCommand<T> command;
+        private final Stream<T> stream;
+        private final Iterator<T> items;
+        private final int total;
+        private final BulkProgressListener listener = bulkProgressListener;
+        private final UI ui = getUI();
+        private final VaadinSession session = ui != null
+                && ui.getSession() != null ? ui.getSession()
+                        : VaadinSession.getCurrent();
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger workers = new AtomicInteger();
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        /** The last processed count given to the listener. */
+        private int reported;
+
+        private BulkRun(ExtMenuItem item, BulkCommand<T> command,
+                Stream<T> items, int total) {
+            this.item = item;
+            this.command = command;
+            stream = items;
+            this.items = items.iterator();
+            this.total = total;
+        }
+
+        private void start(Executor executor, int parallelism) {
+            workers.set(parallelism);
+            for (int i = 0; i < parallelism; i++) {
+                try {
+                    executor.execute(this::processBatches);
+                } catch (RejectedExecutionException e) {
+                    failure.compareAndSet(null, e);
+                    workerDone();
+                }
+            }
+        }
+
+        private void processBatches() {
+            try {
+                List<T> batch;
+                // a failed batch stops the ones not yet taken
+                while (failure.get() == null
+                        && !(batch = takeBatch()).isEmpty()) {
+                    command.menuSelected(item, batch);
+                    processed.addAndGet(batch.size());
+                    if (listener != null) {
+                        ExtMenuExecutors.access(ui, session,
+                                this::reportProgress);
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                workerDone();
+            }
+        }
+
+        private List<T> takeBatch() {
+            synchronized (items) {
+                return nextBatch(items);
+            }
+        }
+
+        /**
+         * Reports the current count, skipping notifications that arrive after
+         * a later count was already reported, so the count never goes back.
+         */
+        private synchronized void reportProgress() {
+            int done = processed.get();
+            if (done > reported) {
+                reported = done;
+                listener.progress(item, done, total);
+            }
+        }
+
+        private void workerDone() {
+            if (workers.decrementAndGet() > 0) {
+                return;
+            }
+            try {
+                stream.close();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+            if (listener != null) {
+                ExtMenuExecutors.access(ui, session, () -> listener
+                        .completed(item, processed.get(), failure.get()));
+            }
+        }
+    }
+
+    private SectionListeners<T> getSectionListeners(Section section) {
+        if (gridDispatchRegistration == null) {
+            gridDispatchRegistration = addContextMenuOpenListener(
+                    this::dispatchGridContextMenuOpen);
+        }
+        SectionListeners<T> sectionListeners = gridListeners.get(section);
+        if (sectionListeners == null) {
+            sectionListeners = new SectionListeners<T>();
+            gridListeners.put(section, sectionListeners);
+            updateOpenOnClient();
+        }
+        return sectionListeners;
+    }
+
+    /**
+     * A menu opened by the client only reports a plain context click, without
+     * the section, row and column the grid listeners are called with.
+     */
+    @Override
+    boolean requiresServerOpening() {
+        return super.requiresServerOpening() || !gridListeners.isEmpty();
+    }
+
+    private Registration addGridSectionContextMenuListener(Section section,
+            GridContextMenuOpenListener<T> listener) {
+        getSectionListeners(section).listeners.add(listener);
+        return () -> removeGridListener(section, null, listener);
+    }
+
+    /**
+     * Removes the listener of the section, or of the column if not null, and
+     * the dispatching listener with the last grid listener.
+     */
+    private void removeGridListener(Section section, Column<T, ?> column,
+            GridContextMenuOpenListener<T> listener) {
+        SectionListeners<T> sectionListeners = gridListeners.get(section);
+        if (sectionListeners == null) {
+            return;
+        }
+        if (column == null) {
+            sectionListeners.listeners.remove(listener);
+        } else if (sectionListeners.columnListeners != null) {
+            List<GridContextMenuOpenListener<T>> listeners = sectionListeners.columnListeners
+                    .get(column);
+            if (listeners != null && listeners.remove(listener)
+                    && listeners.isEmpty()) {
+                sectionListeners.columnListeners.remove(column);
+            }
+        }
+        if (!sectionListeners.listeners.isEmpty()
+                || sectionListeners.columnListeners != null
+                        && !sectionListeners.columnListeners.isEmpty()) {
+            return;
+        }
+        gridListeners.remove(section);
+        if (gridListeners.isEmpty()) {
+            gridDispatchRegistration.remove();
+            gridDispatchRegistration = null;
+            updateOpenOnClient();
+        }
+    }
+
+    /**
+     * Calls the grid listeners of the clicked section and column with one
+     * shared event.
+     */
+    private void dispatchGridContextMenuOpen(ContextMenuOpenEvent event) {
+        if (!(event.getContextClickEvent() instanceof GridContextClickEvent)) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        GridContextClickEvent<T> gridEvent = (GridContextClickEvent<T>) event
+                .getContextClickEvent();
+        SectionListeners<T> sectionListeners = gridListeners
+                .get(gridEvent.getSection());
+        if (sectionListeners == null) {
+            return;
+        }
+        List<GridContextMenuOpenListener<T>> columnListeners = null;
+        if (sectionListeners.columnListeners != null
+                && gridEvent.getColumn() != null) {
+            columnListeners = sectionListeners.columnListeners
+                    .get(gridEvent.getColumn());
+        }
+        if (sectionListeners.listeners.isEmpty() && columnListeners == null) {
+            return;
+        }
+
+        GridContextMenuOpenEvent<T> gridMenuEvent = new GridContextMenuOpenEvent<T>(
+                this, gridEvent);
+        dispatch(sectionListeners.listeners, gridMenuEvent);
+        if (columnListeners != null) {
+            dispatch(columnListeners, gridMenuEvent);
+        }
+    }
+
+    private static <T> void dispatch(
+            List<GridContextMenuOpenListener<T>> listeners,
+            GridContextMenuOpenEvent<T> event) {
+        // a copy, as listeners may be added or removed while dispatching
+        for (GridContextMenuOpenListener<T> listener : new ArrayList<GridContextMenuOpenListener<T>>(
+                listeners)) {
+            listener.onContextMenuOpen(event);
+        }
+    }
+
+    /**
+     * Adds a listener called when the menu is opened on a cell of the column
+     * in the section, after the listeners of the whole section.
+     * <p>
+     * All grid listeners are called by one open listener, added with the
+     * first grid listener. They are called at that place among the listeners
+     * added with {@link #addContextMenuOpenListener(ContextMenuOpenListener)},
+     * not in the order they were added relative to those.
+     *
+     * @param section
+     *            the section of the grid
+     * @param column
+     *            the column of the grid
+     * @param listener
+     *            the listener to add
+     * @return a registration for removing the listener
+     */
+    public Registration addGridColumnContextMenuListener(Section section,
+            Column<T, ?> column, GridContextMenuOpenListener<T> listener) {
+        if (column == null) {
+            throw new IllegalArgumentException("column cannot be null");
+        }
+        SectionListeners<T> sectionListeners = getSectionListeners(section);
+        if (sectionListeners.columnListeners == null) {
+            sectionListeners.columnListeners = new HashMap<Column<T, ?>, List<GridContextMenuOpenListener<T>>>();
+        }
+        List<GridContextMenuOpenListener<T>> listeners = sectionListeners.columnListeners
+                .get(column);
+        if (listeners == null) {
+            listeners = new ArrayList<GridContextMenuOpenListener<T>>();
+            sectionListeners.columnListeners.put(column, listeners);
+        }
+        listeners.add(listener);
+        return () -> removeGridListener(section, column, listener);
     }
 
-    public void addGridHeaderContextMenuListener(
+    /**
+     * Adds a listener called when the menu is opened on the header. See
+     * {@link #addGridColumnContextMenuListener(Section, Column, GridContextMenuOpenListener)}
+     * for the order the listeners are called in.
+     *
+     * @param listener
+     *            the listener to add
+     * @return a registration for removing the listener
+     */
+    public Registration addGridHeaderContextMenuListener(
             GridContextMenuOpenListener<T> listener) {
-        addGridSectionContextMenuListener(Section.HEADER, listener);
+        return addGridSectionContextMenuListener(Section.HEADER, listener);
     }
 
-    public void addGridFooterContextMenuListener(
+    /**
+     * Adds a listener called when the menu is opened on the footer. See
+     * {@link #addGridColumnContextMenuListener(Section, Column, GridContextMenuOpenListener)}
+     * for the order the listeners are called in.
+     *
+     * @param listener
+     *            the listener to add
+     * @return a registration for removing the listener
+     */
+    public Registration addGridFooterContextMenuListener(
             GridContextMenuOpenListener<T> listener) {
-        addGridSectionContextMenuListener(Section.FOOTER, listener);
+        return addGridSectionContextMenuListener(Section.FOOTER, listener);
     }
 
-    public void addGridBodyContextMenuListener(
+    /**
+     * Adds a listener called when the menu is opened on a row. See
+     * {@link #addGridColumnContextMenuListener(Section, Column, GridContextMenuOpenListener)}
+     * for the order the listeners are called in.
+     *
+     * @param listener
+     *            the listener to add
+     * @return a registration for removing the listener
+     */
+    public Registration addGridBodyContextMenuListener(
             GridContextMenuOpenListener<T> listener) {
-        addGridSectionContextMenuListener(Section.BODY, listener);
+        return addGridSectionContextMenuListener(Section.BODY, listener);
     }
 
     public interface GridContextMenuOpenListener<T>
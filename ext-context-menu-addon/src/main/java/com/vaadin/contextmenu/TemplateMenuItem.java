@@ -0,0 +1,295 @@
+package com.vaadin.contextmenu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vaadin.contextmenu.ExtMenu.ChildItemProvider;
+import com.vaadin.contextmenu.ExtMenu.Command;
+import com.vaadin.server.Resource;
+
+/**
+ * The view of an {@link ExtMenuTemplate.Item} in one menu. Only the enabled,
+ * checked and visible states belong to the menu; the other properties are
+ * read from the shared template item and cannot be changed.
+ */
+@SuppressWarnings("serial")
+class TemplateMenuItem implements ExtMenuItem {
+
+    private static final int ENABLED = 1;
+    private static final int VISIBLE = 1 << 1;
+    private static final int CHECKED = 1 << 2;
+
+    private final ExtMenuTemplate.Item templateItem;
+    private final int id;
+    private final ExtMenuItem parent;
+    private final List<ExtMenuItem> children;
+    private AbstractExtMenu menu;
+    private int flags;
+
+    /**
+     * Creates the view of the template item and its children, with ids
+     * allocated by the menu they are added to.
+     */
+    TemplateMenuItem(ExtMenuTemplate.Item templateItem, ExtMenuItem parent,
+            AbstractExtMenu menu) {
+        this.templateItem = templateItem;
+        this.parent = parent;
+        id = menu.nextItemId();
+        flags = (templateItem.isEnabled() ? ENABLED : 0)
+                | (templateItem.isVisible() ? VISIBLE : 0)
+                | (templateItem.isChecked() ? CHECKED : 0);
+        if (templateItem.getChildren().isEmpty()) {
+            children = null;
+        } else {
+            List<ExtMenuItem> items = new ArrayList<ExtMenuItem>(
+                    templateItem.getChildren().size());
+            for (ExtMenuTemplate.Item child : templateItem.getChildren()) {
+                items.add(new TemplateMenuItem(child, this, menu));
+            }
+            children = Collections.unmodifiableList(items);
+        }
+    }
+
+    ExtMenuTemplate.Item getTemplateItem() {
+        return templateItem;
+    }
+
+    AbstractExtMenu getMenu() {
+        return menu;
+    }
+
+    void setMenu(AbstractExtMenu menu) {
+        this.menu = menu;
+    }
+
+    private void setFlag(int flag, boolean value, boolean structural) {
+        int newFlags = value ? flags | flag : flags & ~flag;
+        if (newFlags != flags) {
+            flags = newFlags;
+            if (menu != null) {
+                menu.itemChanged(this, structural);
+            }
+        }
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException(
+                "Only the enabled, checked and visible states of template items can be changed");
+    }
+
+    @Override
+    public boolean hasChildren() {
+        return !isSeparator() && children != null;
+    }
+
+    @Override
+    public List<ExtMenuItem> getChildren() {
+        return children;
+    }
+
+    @Override
+    public int getSize() {
+        return children != null ? children.size() : -1;
+    }
+
+    @Override
+    public ExtMenuItem getParent() {
+        return parent;
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public Command getCommand() {
+        return templateItem.getCommand();
+    }
+
+    @Override
+    public Resource getIcon() {
+        return templateItem.getIcon();
+    }
+
+    @Override
+    public String getText() {
+        return templateItem.getText();
+    }
+
+    @Override
+    public boolean isSeparator() {
+        return templateItem.isSeparator();
+    }
+
+    @Override
+    public String getStyleName() {
+        return templateItem.getStyleName();
+    }
+
+    @Override
+    public String getDescription() {
+        return templateItem.getDescription();
+    }
+
+    @Override
+    public boolean isCheckable() {
+        return templateItem.isCheckable();
+    }
+
+    @Override
+    public boolean isLink() {
+        return false;
+    }
+
+    @Override
+    public String getUrl() {
+        return "";
+    }
+
+    @Override
+    public String getTarget() {
+        return "_blank";
+    }
+
+    @Override
+    public ChildItemProvider getChildItemProvider() {
+        return null;
+    }
+
+    @Override
+    public DataProviderMenuItems<?> getDataProviderItems() {
+        return null;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        setFlag(ENABLED, enabled, false);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return (flags & ENABLED) != 0;
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        setFlag(VISIBLE, visible, true);
+    }
+
+    @Override
+    public boolean isVisible() {
+        return (flags & VISIBLE) != 0;
+    }
+
+    @Override
+    public void setChecked(boolean checked) {
+        setFlag(CHECKED, checked, false);
+    }
+
+    @Override
+    public boolean isChecked() {
+        return (flags & CHECKED) != 0;
+    }
+
+    /**** The shared properties cannot be changed ****/
+
+    @Override
+    public ExtMenuItem addSeparator() {
+        throw readOnly();
+    }
+
+    @Override
+    public ExtMenuItem addSeparatorBefore(ExtMenuItem itemToAddBefore) {
+        throw readOnly();
+    }
+
+    @Override
+    public ExtMenuItem addItem(String caption, Command command) {
+        throw readOnly();
+    }
+
+    @Override
+    public ExtMenuItem addItem(String caption, String url) {
+        throw readOnly();
+    }
+
+    @Override
+    public ExtMenuItem addItem(String caption, Resource icon,
+            Command command) {
+        throw readOnly();
+    }
+
+    @Override
+    public ExtMenuItem addItemBefore(String caption, Resource icon,
+            Command command, ExtMenuItem itemToAddBefore) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setCommand(Command command) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setIcon(Resource icon) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setText(String text) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setUrl(String url) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setLink(boolean link) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setTarget(String target) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setChildItemProvider(ChildItemProvider childItemProvider) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setDataProviderItems(
+            DataProviderMenuItems<?> dataProviderItems) {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeChild(ExtMenuItem item) {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeChildren() {
+        throw readOnly();
+    }
+
+    @Override
+    public void setStyleName(String styleName) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setDescription(String description) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setCheckable(boolean checkable) {
+        throw readOnly();
+    }
+}
@@ -0,0 +1,205 @@
+package com.vaadin.contextmenu.client;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.contextmenu.client.ExtMenuSharedState.ExtMenuItemState;
+import com.vaadin.shared.communication.URLReference;
+
+/**
+ * Wire format of a tree of {@link ExtMenuItemState}s. Instead of one JSON
+ * object per item, the properties are sent as arrays with one element per
+ * item, in depth-first order: the child items of an item follow it, and
+ * {@link #childCounts} tells how many there are. Booleans are packed into
+ * {@link #flags}, style names are sent once in {@link #styleNames}, and
+ * properties that are rarely set are only sent for the items that have them.
+ */
+@SuppressWarnings("serial")
+public class CompactMenuItems implements Serializable {
+
+    public static final int SEPARATOR = 1;
+    public static final int ENABLED = 1 << 1;
+    public static final int CHECKABLE = 1 << 2;
+    public static final int CHECKED = 1 << 3;
+    public static final int LINK = 1 << 4;
+    public static final int LAZY_CHILD_ITEMS = 1 << 5;
+
+    private static final String DEFAULT_TARGET = "_blank";
+
+    /** Number of top level items. */
+    public int rootCount;
+    public int[] ids;
+    public int[] flags;
+    public int[] childCounts;
+    public String[] texts;
+    /**
+     * Index of the style name of each item in {@link #styleNames}, or -1.
+     * Null if no item has a style name.
+     */
+    public int[] styleNameIndexes;
+    public String[] styleNames;
+    /** Descriptions by item index, only for items that have one. */
+    public Map<Integer, String> descriptions;
+    public Map<Integer, URLReference> icons;
+    public Map<Integer, String> urls;
+    /** Link targets by item index, for targets other than "_blank". */
+    public Map<Integer, String> targets;
+
+    /**
+     * Encodes the items and their child items.
+     *
+     * @param items
+     *            the items to encode, can be null
+     * @return the encoded items, or null if there are no items
+     */
+    public static CompactMenuItems encode(List<ExtMenuItemState> items) {
+        if (items == null || items.isEmpty()) {
+            return null;
+        }
+        CompactMenuItems compact = new CompactMenuItems();
+        int count = countItems(items);
+        compact.rootCount = items.size();
+        compact.ids = new int[count];
+        compact.flags = new int[count];
+        compact.childCounts = new int[count];
+        compact.texts = new String[count];
+
+        Map<String, Integer> styleNameTable = new HashMap<String, Integer>();
+        compact.encodeItems(items, 0, styleNameTable);
+
+        if (!styleNameTable.isEmpty()) {
+            compact.styleNames = new String[styleNameTable.size()];
+            for (Map.Entry<String, Integer> entry : styleNameTable
+                    .entrySet()) {
+                compact.styleNames[entry.getValue()] = entry.getKey();
+            }
+        }
+        return compact;
+    }
+
+    /**
+     * Decodes the items.
+     *
+     * @param compact
+     *            the encoded items, can be null
+     * @return the decoded items, or null if there are none
+     */
+    public static List<ExtMenuItemState> decode(CompactMenuItems compact) {
+        if (compact == null) {
+            return null;
+        }
+        return compact.decodeItems(compact.rootCount, new int[] { 0 });
+    }
+
+    private static int countItems(List<ExtMenuItemState> items) {
+        int count = items.size();
+        for (ExtMenuItemState item : items) {
+            if (item.childItems != null) {
+                count += countItems(item.childItems);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes the items starting at the index, returning the index after the
+     * last encoded descendant.
+     */
+    private int encodeItems(List<ExtMenuItemState> items, int index,
+            Map<String, Integer> styleNameTable) {
+        for (ExtMenuItemState item : items) {
+            int i = index++;
+            ids[i] = item.id;
+            texts[i] = item.text;
+            flags[i] = (item.separator ? SEPARATOR : 0)
+                    | (item.enabled ? ENABLED : 0)
+                    | (item.checkable ? CHECKABLE : 0)
+                    | (item.checked ? CHECKED : 0) | (item.link ? LINK : 0)
+                    | (item.lazyChildItems ? LAZY_CHILD_ITEMS : 0);
+
+            if (item.styleName != null) {
+                if (styleNameIndexes == null) {
+                    styleNameIndexes = new int[ids.length];
+                    Arrays.fill(styleNameIndexes, -1);
+                }
+                Integer styleIndex = styleNameTable.get(item.styleName);
+                if (styleIndex == null) {
+                    styleIndex = styleNameTable.size();
+                    styleNameTable.put(item.styleName, styleIndex);
+                }
+                styleNameIndexes[i] = styleIndex;
+            }
+            if (item.description != null) {
+                descriptions = put(descriptions, i, item.description);
+            }
+            if (item.icon != null) {
+                if (icons == null) {
+                    icons = new HashMap<Integer, URLReference>();
+                }
+                icons.put(i, item.icon);
+            }
+            if (item.url != null && !item.url.isEmpty()) {
+                urls = put(urls, i, item.url);
+            }
+            if (!DEFAULT_TARGET.equals(item.target)) {
+                targets = put(targets, i, item.target);
+            }
+
+            if (item.childItems != null) {
+                childCounts[i] = item.childItems.size();
+                index = encodeItems(item.childItems, index, styleNameTable);
+            }
+        }
+        return index;
+    }
+
+    private List<ExtMenuItemState> decodeItems(int count, int[] next) {
+        List<ExtMenuItemState> items = new ArrayList<ExtMenuItemState>(count);
+        for (int n = 0; n < count; n++) {
+            int i = next[0]++;
+            ExtMenuItemState item = new ExtMenuItemState();
+            item.id = ids[i];
+            item.text = texts[i];
+            int itemFlags = flags[i];
+            item.separator = (itemFlags & SEPARATOR) != 0;
+            item.enabled = (itemFlags & ENABLED) != 0;
+            item.checkable = (itemFlags & CHECKABLE) != 0;
+            item.checked = (itemFlags & CHECKED) != 0;
+            item.link = (itemFlags & LINK) != 0;
+            item.lazyChildItems = (itemFlags & LAZY_CHILD_ITEMS) != 0;
+            if (styleNameIndexes != null && styleNameIndexes[i] >= 0) {
+                item.styleName = styleNames[styleNameIndexes[i]];
+            }
+            if (descriptions != null) {
+                item.description = descriptions.get(i);
+            }
+            if (icons != null) {
+                item.icon = icons.get(i);
+            }
+            if (urls != null) {
+                item.url = urls.get(i);
+            }
+            if (targets != null && targets.containsKey(i)) {
+                item.target = targets.get(i);
+            }
+            if (childCounts[i] > 0) {
+                item.childItems = decodeItems(childCounts[i], next);
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static Map<Integer, String> put(Map<Integer, String> map,
+            int index, String value) {
+        if (map == null) {
+            map = new HashMap<Integer, String>();
+        }
+        map.put(index, value);
+        return map;
+    }
+}
@@ -10,4 +10,73 @@ public interface ContextMenuClientRpc extends ClientRpc {
      * @param y
      */
     public void showContextMenu(int x, int y);
+
+    /**
+     * Opens the context menu with items that are built for this opening only,
+     * instead of the items in the shared state. The shared state items are
+     * shown again the next time the menu is opened with
+     * {@link #showContextMenu(int, int)}.
+     * 
+     * @param x
+     * @param y
+     * @param items
+     *            the items of the menu
+     */
+    public void showContextMenuWithItems(int x, int y,
+            CompactMenuItems items);
+
+    /**
+     * Opens the context menu with the items in the shared state, some of
+     * which are changed for this opening only.
+     * 
+     * @param x
+     * @param y
+     * @param overrides
+     *            the changed properties of the items
+     */
+    public void showContextMenuWithOverrides(int x, int y,
+            MenuItemOverrides overrides);
+
+    /**
+     * Opens the context menu with the child items of a top level item in
+     * {@link ExtMenuSharedState#menuTreeIds}, instead of the other top level
+     * items. The items are taken from the shared state, so switching between
+     * the menus does not change the state.
+     * 
+     * @param x
+     * @param y
+     * @param treeItemId
+     *            the id of the item whose child items are shown
+     * @param overrides
+     *            the changed properties of the items, or null
+     */
+    public void showContextMenuTree(int x, int y, int treeItemId,
+            MenuItemOverrides overrides);
+
+    /**
+     * Updates the properties of already shown items. The items are matched by
+     * id, and their child items are not included.
+     * 
+     * @param items
+     *            the new states of the changed items
+     */
+    public void updateMenuItems(CompactMenuItems items);
+
+    /**
+     * Sends the child items of an item whose child items are loaded lazily,
+     * as a response to {@link ContextMenuServerRpc#loadChildItems(int, int)}.
+     * 
+     * @param parentItemId
+     *            the id of the item whose child items are sent
+     * @param offset
+     *            the index of the first sent item among all child items; 0
+     *            replaces the child items loaded earlier
+     * @param childItems
+     *            the child items, or null if there are none
+     * @param childItemCount
+     *            the total number of child items, more than the ones received
+     *            so far if more can be requested
+     */
+    public void setChildItems(int parentItemId, int offset,
+            CompactMenuItems childItems, int childItemCount);
 }
@@ -1,7 +1,50 @@
 package com.vaadin.contextmenu.client;
 
+import java.util.Map;
+
+import com.vaadin.shared.MouseEventDetails;
+import com.vaadin.shared.annotations.Delayed;
 import com.vaadin.shared.communication.ServerRpc;
 
 public interface ContextMenuServerRpc extends ServerRpc {
     void itemClicked(int itemId, boolean menuClosed);
+
+    /**
+     * Requests the child items of an item whose child items are loaded
+     * lazily.
+     * 
+     * @param parentItemId
+     *            the id of the item whose sub-menu is being opened
+     * @param offset
+     *            0 when the sub-menu is opened, or the number of child items
+     *            received so far when more items of a data provider backed
+     *            sub-menu are needed
+     */
+    void loadChildItems(int parentItemId, int offset);
+
+    /**
+     * Tells that a menu opened with items built for it has been closed, so
+     * the items can be discarded. Sent with the next request, after a
+     * possible click on an item.
+     */
+    @Delayed
+    void menuClosed();
+
+    /**
+     * Tells that the menu has been opened on the client by right-clicking the
+     * extended component. Only sent if the server has open listeners.
+     * 
+     * @param mouseEventDetails
+     *            the details of the right-click
+     */
+    void contextMenuOpened(MouseEventDetails mouseEventDetails);
+
+    /**
+     * Sends the checkable items toggled on the client since the last call,
+     * when toggles are batched.
+     * 
+     * @param checkedStates
+     *            the new checked states by item id
+     */
+    void itemsToggled(Map<Integer, Boolean> checkedStates);
 }
@@ -1,17 +1,29 @@
 package com.vaadin.contextmenu.client;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import com.google.gwt.core.client.GWT;
+import com.google.gwt.dom.client.NativeEvent;
 import com.google.gwt.event.dom.client.ClickEvent;
+import com.google.gwt.event.dom.client.ContextMenuEvent;
+import com.google.gwt.event.dom.client.ContextMenuHandler;
+import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.Event;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Event.NativePreviewEvent;
 import com.google.gwt.user.client.Event.NativePreviewHandler;
 import com.google.gwt.user.client.Window;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.ApplicationConnection;
+import com.vaadin.client.MouseEventDetailsBuilder;
 import com.vaadin.client.ServerConnector;
 import com.vaadin.client.WidgetUtil;
 import com.vaadin.client.communication.StateChangeEvent;
@@ -34,6 +46,114 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
     private MyVMenuBar dummyRootMenuBar;
     private MyVMenuBar contextMenuWidget;
 
+    /**
+     * Menus with more items than this only render the items in view.
+     */
+    private static final int VIRTUAL_MENU_THRESHOLD = 100;
+
+    private final Map<Integer, CustomMenuItem> menuItemsById = new HashMap<Integer, CustomMenuItem>();
+    private final Map<Integer, ExtMenuItemState> statesById = new HashMap<Integer, ExtMenuItemState>();
+    private final Map<CustomMenuItem, ExtMenuItemState> itemStates = new HashMap<CustomMenuItem, ExtMenuItemState>();
+    private final Set<Integer> pendingChildItemRequests = new HashSet<Integer>();
+
+    /**
+     * The overrides of the current opening of the menu, and the index of
+     * each overridden item id in them.
+     */
+    private MenuItemOverrides itemOverrides;
+    private final Map<Integer, Integer> overrideIndexes = new HashMap<Integer, Integer>();
+
+    /**
+     * The id of the item in {@link ExtMenuSharedState#menuTreeIds} whose child
+     * items are shown, or null for the other top level items.
+     */
+    private Integer shownTreeId;
+
+    /**
+     * Handles keyboard navigation of the menu. Only registered while the menu
+     * is open, so that closed menus do not see every event of the page.
+     */
+    private final NativePreviewHandler previewHandler = new NativePreviewHandler() {
+        @Override
+        public void onPreviewNativeEvent(NativePreviewEvent event) {
+            if (event.getTypeInt() == Event.ONKEYDOWN
+                    && contextMenuWidget.isPopupShowing()) {
+                boolean handled = contextMenuWidget.handleNavigation(
+                        event.getNativeEvent().getKeyCode(),
+                        event.getNativeEvent().getCtrlKey(),
+                        event.getNativeEvent().getShiftKey());
+
+                if (handled) {
+                    event.cancel();
+                }
+            }
+        }
+    };
+    private HandlerRegistration previewHandlerRegistration;
+
+    /**
+     * How long to wait after the last toggle of a checkable item before the
+     * toggles are sent to the server, unless the menu is closed before.
+     */
+    private static final int TOGGLE_FLUSH_DELAY_MS = 1000;
+
+    /** Checked states toggled on the client and not sent yet, by item id. */
+    private final Map<Integer, Boolean> pendingToggles = new HashMap<Integer, Boolean>();
+    /** The checked states on the server of the items in pendingToggles. */
+    private final Map<Integer, Boolean> serverCheckedStates = new HashMap<Integer, Boolean>();
+
+    private final Timer toggleFlushTimer = new Timer() {
+        @Override
+        public void run() {
+            flushToggles();
+        }
+    };
+
+    private final MyVMenuBar.ItemClickHandler itemClickHandler = new MyVMenuBar.ItemClickHandler() {
+        @Override
+        public boolean onItemClick(CustomMenuItem item) {
+            ExtMenuItemState itemState = itemStates.get(item);
+            if (!getState().batchCheckableToggles || itemState == null
+                    || !itemState.checkable || !itemState.enabled
+                    || itemState.link
+                    || overrideIndexes.containsKey(itemState.id)) {
+                return false;
+            }
+            toggleItem(item, itemState);
+            return true;
+        }
+    };
+
+    /** The states of the items shown in the menu, see reconcileItems. */
+    private List<ExtMenuItemState> menuItems;
+    /**
+     * The items of the shared state decoded by menu tree, see getTreeItems.
+     * Null until decoded after the items have changed.
+     */
+    private Map<Integer, List<ExtMenuItemState>> decodedTrees;
+    /**
+     * True while the menu shows items sent for one opening instead of the
+     * items in the shared state.
+     */
+    private boolean showingBuiltItems;
+    private boolean openingMenu;
+
+    private final MyVMenuBar.SubMenuLoader subMenuLoader = new MyVMenuBar.SubMenuLoader() {
+        @Override
+        public boolean prepareSubMenu(CustomMenuItem item) {
+            ExtMenuItemState itemState = itemStates.get(item);
+            if (itemState == null || !itemState.lazyChildItems
+                    || itemState.childItems != null) {
+                return true;
+            }
+            if (pendingChildItemRequests.add(itemState.id)) {
+                getRpcProxy(ContextMenuServerRpc.class)
+                        .loadChildItems(itemState.id, 0);
+            }
+            return false;
+        }
+    };
+
     @Override
     public ExtMenuSharedState getState() {
         return (ExtMenuSharedState) super.getState();
@@ -43,8 +163,154 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
     public void onStateChanged(StateChangeEvent stateChangeEvent) {
         super.onStateChanged(stateChangeEvent);
 
-        contextMenuWidget.clearItems();
-        addMenuItemsFromState(contextMenuWidget, getState().menuItems);
+        if (stateChangeEvent.hasPropertyChanged("menuItems")
+                || stateChangeEvent.hasPropertyChanged("menuTreeIds")) {
+            decodedTrees = null;
+        }
+        if (showingBuiltItems) {
+            // the state items are restored when the menu is opened next time
+            return;
+        }
+        if (stateChangeEvent.hasPropertyChanged("menuItems")
+                || stateChangeEvent.hasPropertyChanged("htmlContentAllowed")
+                || stateChangeEvent.hasPropertyChanged("structureVersion")
+                || stateChangeEvent.hasPropertyChanged("menuTreeIds")) {
+            menuItems = reconcileItems(contextMenuWidget, menuItems,
+                    getTreeItems(shownTreeId));
+        }
+    }
+
+    /**
+     * Updates the items of a menu to match the new states. Items are matched
+     * by id: existing items are updated in place and only moved if the order
+     * has changed, so open sub-menus and the selection are kept. Virtual
+     * menus are rebuilt.
+     * 
+     * @param menu
+     *            the menu to update
+     * @param oldStates
+     *            the states the items of the menu were built from, or null
+     * @param newStates
+     *            the new states, or null for no items
+     * @return the states of the items now in the menu; for reused items these
+     *         are the old state objects updated with the new values, as they
+     *         are referenced by the commands of the items
+     */
+    private List<ExtMenuItemState> reconcileItems(MyVMenuBar menu,
+            List<ExtMenuItemState> oldStates,
+            List<ExtMenuItemState> newStates) {
+        if (oldStates == null || menu.isVirtual() || (newStates != null
+                && newStates.size() > VIRTUAL_MENU_THRESHOLD)) {
+            if (oldStates != null) {
+                for (ExtMenuItemState oldState : oldStates) {
+                    forgetItem(oldState);
+                }
+            }
+            menu.clearItems();
+            addMenuItemsFromState(menu, newStates);
+            return newStates;
+        }
+
+        Map<Integer, ExtMenuItemState> oldStatesById = new HashMap<Integer, ExtMenuItemState>();
+        for (ExtMenuItemState oldState : oldStates) {
+            oldStatesById.put(oldState.id, oldState);
+        }
+
+        List<ExtMenuItemState> states = new ArrayList<ExtMenuItemState>();
+        List<CustomMenuItem> items = new ArrayList<CustomMenuItem>();
+        if (newStates != null) {
+            for (ExtMenuItemState newState : newStates) {
+                ExtMenuItemState oldState = oldStatesById.remove(newState.id);
+                CustomMenuItem item = oldState != null
+                        ? menuItemsById.get(newState.id) : null;
+                if (item != null && itemStates.get(item) == oldState) {
+                    updateItem(menu, item, oldState, newState);
+                    states.add(oldState);
+                } else {
+                    if (oldState != null) {
+                        forgetItem(oldState);
+                    }
+                    item = createMenuItem(menu, newState);
+                    states.add(newState);
+                }
+                items.add(item);
+            }
+        }
+        for (ExtMenuItemState removed : oldStatesById.values()) {
+            forgetItem(removed);
+        }
+
+        if (!items.equals(menu.getItems())) {
+            menu.setItems(items);
+        }
+        return states.isEmpty() ? null : states;
+    }
+
+    /**
+     * Applies a new state, including child items, to an existing item.
+     */
+    private void updateItem(MyVMenuBar menu, CustomMenuItem item,
+            ExtMenuItemState state, ExtMenuItemState newState) {
+        copyItemProperties(newState, state);
+
+        if (newState.childItems != null && !newState.childItems.isEmpty()) {
+            MyVMenuBar subMenu = (MyVMenuBar) item.getSubMenu();
+            if (subMenu == null) {
+                subMenu = createSubMenu(menu);
+                item.setSubMenu(subMenu);
+            }
+            state.childItems = reconcileItems(subMenu, state.childItems,
+                    newState.childItems);
+            state.lazyChildItems = false;
+        } else {
+            if (state.childItems != null) {
+                for (ExtMenuItemState child : state.childItems) {
+                    forgetItem(child);
+                }
+                state.childItems = null;
+            }
+            state.lazyChildItems = newState.lazyChildItems;
+            if (item.getSubMenu() != null) {
+                menu.hideChildMenu(item);
+                if (state.lazyChildItems) {
+                    // loaded again when opened, the items may have changed
+                    item.getSubMenu().clearItems();
+                    ((MyVMenuBar) item.getSubMenu()).setMoreItemsLoader(null);
+                } else {
+                    item.setSubMenu(null);
+                }
+            } else if (state.lazyChildItems) {
+                item.setSubMenu(createSubMenu(menu));
+            }
+        }
+
+        String html = buildItemHTML(state, getState().htmlContentAllowed,
+                getConnection());
+        if (!html.equals(item.getHTML())) {
+            item.setHTML(html);
+        }
+        updateMenuItemFromState(item, state);
+    }
+
+    /**
+     * Removes the item and its child items from the lookup maps, unless the
+     * id has already been taken by a new item.
+     */
+    private void forgetItem(ExtMenuItemState state) {
+        if (statesById.get(state.id) == state) {
+            statesById.remove(state.id);
+        }
+        CustomMenuItem item = menuItemsById.get(state.id);
+        if (item != null && itemStates.get(item) == state) {
+            menuItemsById.remove(state.id);
+            itemStates.remove(item);
+            pendingChildItemRequests.remove(state.id);
+        }
+        if (state.childItems != null) {
+            for (ExtMenuItemState child : state.childItems) {
+                forgetItem(child);
+            }
+        }
     }
 
     @Override
@@ -57,6 +323,8 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
         dummyRootMenuBar.getItems().add(item);
 
         contextMenuWidget = new MyVMenuBar(true, dummyRootMenuBar);
+        contextMenuWidget.setSubMenuLoader(subMenuLoader);
+        contextMenuWidget.setItemClickHandler(itemClickHandler);
         item.setSubMenu(contextMenuWidget);
 
         // application connection that is used for all our overlays
@@ -65,50 +333,198 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
         registerRpc(ContextMenuClientRpc.class, new ContextMenuClientRpc() {
             @Override
             public void showContextMenu(int x, int y) {
+                showStateMenu(x, y, null, null);
+            }
+
+            @Override
+            public void showContextMenuWithOverrides(int x, int y,
+                    MenuItemOverrides overrides) {
+                showStateMenu(x, y, overrides, null);
+            }
+
+            @Override
+            public void showContextMenuTree(int x, int y, int treeItemId,
+                    MenuItemOverrides overrides) {
+                showStateMenu(x, y, overrides, treeItemId);
+            }
+
+            @Override
+            public void showContextMenuWithItems(int x, int y,
+                    CompactMenuItems items) {
+                setItemOverrides(null);
+                showingBuiltItems = true;
+                menuItems = reconcileItems(contextMenuWidget, menuItems,
+                        CompactMenuItems.decode(items));
                 showMenu(x, y);
             }
+
+            @Override
+            public void updateMenuItems(CompactMenuItems items) {
+                for (ExtMenuItemState itemState : CompactMenuItems
+                        .decode(items)) {
+                    updateMenuItem(itemState);
+                }
+            }
+
+            @Override
+            public void setChildItems(int parentItemId, int offset,
+                    CompactMenuItems childItems, int childItemCount) {
+                showChildItems(parentItemId, offset,
+                        CompactMenuItems.decode(childItems), childItemCount);
+            }
         });
 
-        Event.addNativePreviewHandler(new NativePreviewHandler() {
+        dummyRootMenuBar.setChildMenuCloseHandler(new Command() {
             @Override
-            public void onPreviewNativeEvent(NativePreviewEvent event) {
-                if (event.getTypeInt() == Event.ONKEYDOWN
-                        && contextMenuWidget.isPopupShowing()) {
-                    boolean handled = contextMenuWidget.handleNavigation(
-                            event.getNativeEvent().getKeyCode(),
-                            event.getNativeEvent().getCtrlKey(),
-                            event.getNativeEvent().getShiftKey());
-
-                    if (handled) {
-                        event.cancel();
-                    }
+            public void execute() {
+                removePreviewHandler();
+                flushToggles();
+                if (showingBuiltItems && !openingMenu) {
+                    getRpcProxy(ContextMenuServerRpc.class).menuClosed();
                 }
             }
         });
     }
 
-    private void addMenuItemsFromState(VMenuBar menuToAddTo,
+    @Override
+    public void onUnregister() {
+        super.onUnregister();
+        toggleFlushTimer.cancel();
+        dummyRootMenuBar.hideChildren();
+        removePreviewHandler();
+    }
+
+    /**
+     * Toggles a checkable item in place, keeping the menu open, and queues
+     * the new checked state to be sent to the server with other toggles.
+     */
+    private void toggleItem(CustomMenuItem item, ExtMenuItemState itemState) {
+        if (!serverCheckedStates.containsKey(itemState.id)) {
+            serverCheckedStates.put(itemState.id, itemState.checked);
+        }
+        itemState.checked = !itemState.checked;
+        item.setChecked(itemState.checked);
+
+        if (serverCheckedStates.get(itemState.id) == itemState.checked) {
+            // toggled back, nothing to tell
+            pendingToggles.remove(itemState.id);
+            serverCheckedStates.remove(itemState.id);
+        } else {
+            pendingToggles.put(itemState.id, itemState.checked);
+        }
+        toggleFlushTimer.schedule(TOGGLE_FLUSH_DELAY_MS);
+    }
+
+    private void flushToggles() {
+        toggleFlushTimer.cancel();
+        if (!pendingToggles.isEmpty()) {
+            getRpcProxy(ContextMenuServerRpc.class).itemsToggled(
+                    new HashMap<Integer, Boolean>(pendingToggles));
+            pendingToggles.clear();
+            serverCheckedStates.clear();
+        }
+    }
+
+    private void removePreviewHandler() {
+        if (previewHandlerRegistration != null) {
+            previewHandlerRegistration.removeHandler();
+            previewHandlerRegistration = null;
+        }
+    }
+
+    private void addMenuItemsFromState(MyVMenuBar menuToAddTo,
             List<ExtMenuItemState> menuItems) {
         if (menuItems == null)
             return;
 
+        if (menuItems.size() > VIRTUAL_MENU_THRESHOLD) {
+            menuToAddTo.setVirtualItemSource(
+                    new StateItemSource(menuToAddTo, menuItems));
+            return;
+        }
+
         for (ExtMenuItemState extMenuItemState : menuItems) {
-            CustomMenuItem newItem = addMenuItemToMenu(menuToAddTo, extMenuItemState);
+            menuToAddTo.addItem(createMenuItem(menuToAddTo, extMenuItemState));
+        }
+    }
 
-            if (extMenuItemState.childItems != null
-                    && extMenuItemState.childItems.size() > 0) {
-                VMenuBar subMenu = new MyVMenuBar(true, menuToAddTo);
-                addMenuItemsFromState(subMenu, extMenuItemState.childItems);
-                newItem.setSubMenu(subMenu);
+    private MyVMenuBar createSubMenu(VMenuBar parentMenu) {
+        MyVMenuBar subMenu = new MyVMenuBar(true, parentMenu);
+        subMenu.setSubMenuLoader(subMenuLoader);
+        subMenu.setItemClickHandler(itemClickHandler);
+        return subMenu;
+    }
+
+    /**
+     * Fills in the sub-menu of a lazily loaded item and opens it, unless the
+     * user has already moved on to another item. Items with an offset are
+     * appended to a sub-menu whose items are fetched in pages.
+     */
+    private void showChildItems(final int parentItemId, int offset,
+            List<ExtMenuItemState> childItems, int childItemCount) {
+        pendingChildItemRequests.remove(parentItemId);
+        CustomMenuItem item = menuItemsById.get(parentItemId);
+        final ExtMenuItemState itemState = itemStates.get(item);
+        if (item == null || itemState == null || item.getSubMenu() == null) {
+            return;
+        }
+        MyVMenuBar subMenu = (MyVMenuBar) item.getSubMenu();
+
+        if (offset == 0) {
+            itemState.childItems = childItems != null ? childItems
+                    : new ArrayList<ExtMenuItemState>();
+            subMenu.clearItems();
+            if (childItemCount > VIRTUAL_MENU_THRESHOLD) {
+                // more pages will follow, render as a virtual menu from start
+                subMenu.setVirtualItemSource(
+                        new StateItemSource(subMenu, itemState.childItems));
+            } else {
+                addMenuItemsFromState(subMenu, itemState.childItems);
+            }
+        } else if (itemState.childItems != null
+                && itemState.childItems.size() == offset
+                && childItems != null) {
+            itemState.childItems.addAll(childItems);
+            if (subMenu.isVirtual()) {
+                // the item source reads the appended states from the list
+                for (ExtMenuItemState childItem : childItems) {
+                    statesById.put(childItem.id, childItem);
+                }
+            } else {
+                addMenuItemsFromState(subMenu, childItems);
             }
+            subMenu.itemsAdded();
+        } else {
+            // a page of an earlier opening of the sub-menu
+            return;
+        }
+
+        if (itemState.childItems.size() < childItemCount) {
+            subMenu.setMoreItemsLoader(new Command() {
+                @Override
+                public void execute() {
+                    if (pendingChildItemRequests.add(parentItemId)) {
+                        getRpcProxy(ContextMenuServerRpc.class).loadChildItems(
+                                parentItemId, itemState.childItems.size());
+                    }
+                }
+            });
+        } else {
+            subMenu.setMoreItemsLoader(null);
+        }
+
+        if (offset == 0) {
+            ((MyVMenuBar) item.getParentMenu()).showChildMenuIfSelected(item);
         }
     }
 
-    private CustomMenuItem addMenuItemToMenu(VMenuBar menuToAddTo,
+    private CustomMenuItem createMenuItem(MyVMenuBar parentMenu,
             final ExtMenuItemState extMenuItemState) {
-        String itemText = buildItemHTML(extMenuItemState,
-                getState().htmlContentAllowed, getConnection());
-        CustomMenuItem item = menuToAddTo.addItem(itemText, new Command() {
+        CustomMenuItem item = GWT.create(CustomMenuItem.class);
+        item.setParentMenu(parentMenu);
+        item.setHTML(buildItemHTML(extMenuItemState,
+                getState().htmlContentAllowed, getConnection()));
+        item.setCommand(new Command() {
             @Override
             public void execute() {
                 if (contextMenuWidget.isAttached()) {
@@ -123,10 +539,92 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
         });
 
         updateMenuItemFromState(item, extMenuItemState);
+        menuItemsById.put(extMenuItemState.id, item);
+        statesById.put(extMenuItemState.id, extMenuItemState);
+        itemStates.put(item, extMenuItemState);
+
+        if (extMenuItemState.childItems != null
+                && extMenuItemState.childItems.size() > 0) {
+            MyVMenuBar subMenu = createSubMenu(parentMenu);
+            addMenuItemsFromState(subMenu, extMenuItemState.childItems);
+            item.setSubMenu(subMenu);
+        } else if (extMenuItemState.lazyChildItems) {
+            // filled in when the sub-menu is opened for the first time
+            item.setSubMenu(createSubMenu(parentMenu));
+        }
 
         return item;
     }
 
+    /**
+     * Creates the items of a virtual menu when they are scrolled into view.
+     */
+    private class StateItemSource implements MyVMenuBar.VirtualItemSource {
+        private final MyVMenuBar menu;
+        private final List<ExtMenuItemState> menuItems;
+        private final Map<Integer, CustomMenuItem> createdItems = new HashMap<Integer, CustomMenuItem>();
+
+        private StateItemSource(MyVMenuBar menu,
+                List<ExtMenuItemState> menuItems) {
+            this.menu = menu;
+            this.menuItems = menuItems;
+            for (ExtMenuItemState itemState : menuItems) {
+                statesById.put(itemState.id, itemState);
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            return menuItems.size();
+        }
+
+        @Override
+        public CustomMenuItem getItem(int index) {
+            CustomMenuItem item = createdItems.get(index);
+            if (item == null) {
+                item = createMenuItem(menu, menuItems.get(index));
+                createdItems.put(index, item);
+            }
+            return item;
+        }
+    }
+
+    /**
+     * Applies the changed properties of an item that is already in the menu.
+     * The state object of the item is updated in place, as it is referenced by
+     * the command of the item.
+     */
+    private void updateMenuItem(ExtMenuItemState changed) {
+        ExtMenuItemState itemState = statesById.get(changed.id);
+        if (itemState == null) {
+            return;
+        }
+
+        copyItemProperties(changed, itemState);
+
+        CustomMenuItem item = menuItemsById.get(changed.id);
+        if (item != null) {
+            item.setHTML(buildItemHTML(itemState,
+                    getState().htmlContentAllowed, getConnection()));
+            updateMenuItemFromState(item, itemState);
+        }
+    }
+
+    private static void copyItemProperties(ExtMenuItemState from,
+            ExtMenuItemState to) {
+        to.separator = from.separator;
+        to.text = from.text;
+        to.icon = from.icon;
+        to.enabled = from.enabled;
+        to.description = from.description;
+        to.checkable = from.checkable;
+        to.checked = from.checked;
+        to.styleName = from.styleName;
+        to.link = from.link;
+        to.url = from.url;
+        to.target = from.target;
+    }
+
     private void updateMenuItemFromState(CustomMenuItem item,
             ExtMenuItemState state) {
         item.setEnabled(state.enabled);
@@ -138,70 +636,285 @@ public class ExtContextMenuConnector extends AbstractExtensionConnector {
             ((VExtMenuItem) item).setSeparator(state.separator);
             ((VExtMenuItem) item).setDescription(state.description);
         }
+        applyItemOverrides(item, state);
     }
 
+    private static final String SEPARATOR_HTML = "<span>---</span>";
+
+    /**
+     * Item HTML by icon URL, text, htmlContentAllowed and sub-menu indicator,
+     * shared by all menus so that re-opening or refreshing a menu does not
+     * rebuild the markup of unchanged items.
+     */
+    private static final HtmlCache itemHtmlCache = new HtmlCache(1000);
+    /** Icon HTML by URL, so that icon elements are not created per item. */
+    private static final HtmlCache iconHtmlCache = new HtmlCache(100);
+
     // TODO adapted from VMenuBar.buildItemHTML, must be removed/refactored asap
     private static String buildItemHTML(ExtMenuItemState state,
             boolean htmlContentAllowed, ApplicationConnection connection) {
-        // Construct html from the text and the optional icon
-        StringBuffer itemHTML = new StringBuffer();
         if (state.separator) {
-            itemHTML.append("<span>---</span>");
-        } else {
-            // Add submenu indicator
-            if (state.childItems != null && state.childItems.size() > 0) {
-                itemHTML.append(
-                        "<span class=\"v-menubar-submenu-indicator\">&#x25BA;</span>");
-            }
+            return SEPARATOR_HTML;
+        }
+        boolean hasChildren = (state.childItems != null
+                && state.childItems.size() > 0) || state.lazyChildItems;
+        String iconUrl = state.icon != null ? state.icon.getURL() : null;
+
+        String key = (hasChildren ? "c" : "-")
+                + (htmlContentAllowed ? "h" : "-") + (iconUrl != null ? iconUrl : "") + '\u0000' + state.text;
+        String html = itemHtmlCache.get(key);
+        if (html != null) {
+            return html;
+        }
 
-            itemHTML.append("<span class=\"v-menubar-menuitem-caption\">");
+        // Construct html from the text and the optional icon
+        StringBuilder itemHTML = new StringBuilder();
+        // Add submenu indicator
+        if (hasChildren) {
+            itemHTML.append(
+                    "<span class=\"v-menubar-submenu-indicator\">&#x25BA;</span>");
+        }
 
-            if (state.icon != null) {
-                Icon icon = connection.getIcon(state.icon.getURL());
-                if (icon != null) {
-                    itemHTML.append(icon.getElement().getString());
-                }
-            }
+        itemHTML.append("<span class=\"v-menubar-menuitem-caption\">");
 
-            String itemText = state.text;
-            if (!htmlContentAllowed) {
-                itemText = WidgetUtil.escapeHTML(itemText);
-            }
-            itemHTML.append(itemText);
-            itemHTML.append("</span>");
+        if (iconUrl != null) {
+            itemHTML.append(getIconHTML(iconUrl, connection));
         }
 
-        return itemHTML.toString();
+        String itemText = state.text;
+        if (!htmlContentAllowed) {
+            itemText = WidgetUtil.escapeHTML(itemText);
+        }
+        itemHTML.append(itemText);
+        itemHTML.append("</span>");
+
+        html = itemHTML.toString();
+        itemHtmlCache.put(key, html);
+        return html;
+    }
+
+    private static String getIconHTML(String iconUrl,
+            ApplicationConnection connection) {
+        String html = iconHtmlCache.get(iconUrl);
+        if (html == null) {
+            Icon icon = connection.getIcon(iconUrl);
+            html = icon != null ? icon.getElement().getString() : "";
+            iconHtmlCache.put(iconUrl, html);
+        }
+        return html;
+    }
+
+    /**
+     * A map that drops its least recently used entry when it grows past its
+     * maximum size.
+     */
+    private static class HtmlCache extends LinkedHashMap<String, String> {
+        private final int maxSize;
+
+        private HtmlCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > maxSize;
+        }
     }
 
     protected void itemSelected(int id) {
         getRpcProxy(ContextMenuServerRpc.class).itemClicked(id, true);
     }
 
+    /**
+     * Shows the menu with the items in the shared state, restoring them if
+     * the menu was last opened with items built for that opening or with
+     * another menu tree.
+     */
+    private void showStateMenu(int eventX, int eventY,
+            MenuItemOverrides overrides, Integer treeId) {
+        boolean treeChanged = treeId == null ? shownTreeId != null
+                : !treeId.equals(shownTreeId);
+        if (showingBuiltItems || treeChanged) {
+            showingBuiltItems = false;
+            shownTreeId = treeId;
+            // overridden items may be removed from the menu
+            setItemOverrides(null);
+            menuItems = reconcileItems(contextMenuWidget, menuItems,
+                    getTreeItems(treeId));
+        }
+        setItemOverrides(overrides);
+        showMenu(eventX, eventY);
+    }
+
+    /**
+     * Gets the top level items of a menu tree from the shared state. The
+     * items are decoded once for all trees after they have changed. The menu
+     * keeps and updates the states of the items it shows, so the trees are
+     * only handed out once, and decoded again if shown again.
+     * 
+     * @param treeId
+     *            the id of the item whose child items to get, or null for the
+     *            top level items that are not in
+     *            {@link ExtMenuSharedState#menuTreeIds}
+     * @return the items, or null if there are none
+     */
+    private List<ExtMenuItemState> getTreeItems(Integer treeId) {
+        int[] treeIds = getState().menuTreeIds;
+        if (treeIds == null || treeIds.length == 0) {
+            // all items form one menu
+            treeId = null;
+        }
+        if (decodedTrees == null || !decodedTrees.containsKey(treeId)) {
+            decodedTrees = decodeTrees(treeIds);
+        }
+        return decodedTrees.remove(treeId);
+    }
+
+    /**
+     * Decodes the items of the shared state, by the id of the menu tree they
+     * are in and with null for the items that are not in a tree.
+     */
+    private Map<Integer, List<ExtMenuItemState>> decodeTrees(int[] treeIds) {
+        Map<Integer, List<ExtMenuItemState>> trees = new HashMap<Integer, List<ExtMenuItemState>>();
+        List<ExtMenuItemState> items = CompactMenuItems
+                .decode(getState().menuItems);
+        if (items == null || treeIds == null || treeIds.length == 0) {
+            trees.put(null, items);
+            return trees;
+        }
+        List<ExtMenuItemState> treeItems = new ArrayList<ExtMenuItemState>();
+        for (ExtMenuItemState item : items) {
+            if (isTreeId(treeIds, item.id)) {
+                trees.put(item.id, item.childItems);
+            } else {
+                treeItems.add(item);
+            }
+        }
+        trees.put(null, treeItems.isEmpty() ? null : treeItems);
+        return trees;
+    }
+
+    private static boolean isTreeId(int[] treeIds, int id) {
+        for (int treeId : treeIds) {
+            if (treeId == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restores the items overridden for the previous opening of the menu and
+     * applies the new overrides to the items that exist. Items that are
+     * created later, e.g. when a lazy sub-menu is loaded, get the overrides
+     * when they are created.
+     */
+    private void setItemOverrides(MenuItemOverrides overrides) {
+        if (itemOverrides != null) {
+            List<Integer> restoredIds = new ArrayList<Integer>(
+                    overrideIndexes.keySet());
+            overrideIndexes.clear();
+            itemOverrides = null;
+            for (Integer id : restoredIds) {
+                CustomMenuItem item = menuItemsById.get(id);
+                ExtMenuItemState itemState = itemStates.get(item);
+                if (itemState != null) {
+                    item.setHTML(buildItemHTML(itemState,
+                            getState().htmlContentAllowed, getConnection()));
+                    updateMenuItemFromState(item, itemState);
+                    item.setVisible(true);
+                }
+            }
+        }
+        if (overrides == null || overrides.ids == null) {
+            return;
+        }
+        itemOverrides = overrides;
+        for (int i = 0; i < overrides.ids.length; i++) {
+            overrideIndexes.put(overrides.ids[i], i);
+        }
+        for (int id : overrides.ids) {
+            CustomMenuItem item = menuItemsById.get(id);
+            ExtMenuItemState itemState = itemStates.get(item);
+            if (itemState != null) {
+                applyItemOverrides(item, itemState);
+            }
+        }
+    }
+
+    private void applyItemOverrides(CustomMenuItem item,
+            ExtMenuItemState state) {
+        Integer index = overrideIndexes.get(state.id);
+        if (index == null) {
+            return;
+        }
+        int mask = itemOverrides.masks[index];
+        int values = itemOverrides.values[index];
+        if ((mask & MenuItemOverrides.ENABLED) != 0) {
+            item.setEnabled((values & MenuItemOverrides.ENABLED) != 0);
+        }
+        if ((mask & MenuItemOverrides.CHECKED) != 0) {
+            item.setChecked((values & MenuItemOverrides.CHECKED) != 0);
+        }
+        if ((mask & MenuItemOverrides.VISIBLE) != 0) {
+            item.setVisible((values & MenuItemOverrides.VISIBLE) != 0);
+        }
+        if ((mask & MenuItemOverrides.TEXT) != 0) {
+            ExtMenuItemState shown = new ExtMenuItemState();
+            copyItemProperties(state, shown);
+            shown.childItems = state.childItems;
+            shown.lazyChildItems = state.lazyChildItems;
+            shown.text = itemOverrides.texts[index];
+            item.setHTML(buildItemHTML(shown, getState().htmlContentAllowed,
+                    getConnection()));
+        }
+    }
+
     private void showMenu(int eventX, int eventY) {
         CustomMenuItem firstItem = dummyRootMenuBar.getItems().get(0);
         dummyRootMenuBar.setSelected(firstItem);
-        dummyRootMenuBar.showChildMenuAt(firstItem, eventY, eventX);
+        // an open menu is closed first, which is not a close of the new one
+        openingMenu = true;
+        try {
+            dummyRootMenuBar.showChildMenuAt(firstItem, eventY, eventX);
+        } finally {
+            openingMenu = false;
+        }
+        // after showing, as closing a menu that is already open removes it
+        if (previewHandlerRegistration == null) {
+            previewHandlerRegistration = Event
+                    .addNativePreviewHandler(previewHandler);
+        }
     }
 
     @Override
     protected void extend(ServerConnector target) {
         Logger.getLogger("ExtContextMenuConnector").info("extend");
 
-        Widget widget = ((AbstractComponentConnector) target).getWidget();
+        final Widget widget = ((AbstractComponentConnector) target)
+                .getWidget();
         //widget.addDomHandler(this, ClickEvent.getType());
 
-        // widget.addDomHandler(new ContextMenuHandler() {
-        //
-        // @Override
-        // public void onContextMenu(ContextMenuEvent event) {
-        // event.stopPropagation();
-        // event.preventDefault();
-        //
-        // showMenu(event.getNativeEvent().getClientX(), event
-        // .getNativeEvent().getClientY());
-        // }
-        // }, ContextMenuEvent.getType());
+        widget.addDomHandler(new ContextMenuHandler() {
+            @Override
+            public void onContextMenu(ContextMenuEvent event) {
+                if (!getState().openOnClient) {
+                    return;
+                }
+                event.stopPropagation();
+                event.preventDefault();
+
+                NativeEvent nativeEvent = event.getNativeEvent();
+                showStateMenu(nativeEvent.getClientX(),
+                        nativeEvent.getClientY(), null, null);
+                if (getState().hasOpenListeners) {
+                    getRpcProxy(ContextMenuServerRpc.class).contextMenuOpened(
+                            MouseEventDetailsBuilder.buildMouseEventDetails(
+                                    nativeEvent, widget.getElement()));
+                }
+            }
+        }, ContextMenuEvent.getType());
 
         // widget.addDomHandler(new KeyDownHandler() {
         // @Override
@@ -1,7 +1,6 @@
 package com.vaadin.contextmenu.client;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -11,8 +10,39 @@ import com.vaadin.shared.communication.URLReference;
 @SuppressWarnings("serial")
 public class ExtMenuSharedState extends AbstractComponentState {
 
-    public List<ExtMenuItemState> menuItems;
+    /**
+     * The items of the menu, decoded with
+     * {@link CompactMenuItems#decode(CompactMenuItems)}.
+     */
+    public CompactMenuItems menuItems;
     public boolean htmlContentAllowed;
+    /**
+     * Changed whenever the structure of the menu changes, so that the client
+     * also drops sub-menus it has loaded lazily.
+     */
+    public int structureVersion;
+    /**
+     * True if the menu is opened by the client when the extended component is
+     * right-clicked, without asking the server.
+     */
+    public boolean openOnClient;
+    /**
+     * True if the server wants to know when the menu is opened on the client.
+     */
+    public boolean hasOpenListeners;
+    /**
+     * True if checkable items are toggled on the client without closing the
+     * menu, and the toggles are sent to the server in batches.
+     */
+    public boolean batchCheckableToggles;
+    /**
+     * The ids of the top level items whose child items form a separate menu,
+     * shown with
+     * {@link ContextMenuClientRpc#showContextMenuTree(int, int, int, MenuItemOverrides)}.
+     * These items are not shown themselves, and their child items are only
+     * shown in their own menu.
+     */
+    public int[] menuTreeIds;
 
     public static class ExtMenuItemState implements Serializable {
         public int id;
@@ -25,13 +55,19 @@ public class ExtMenuSharedState extends AbstractComponentState {
         public boolean checkable;
         public boolean checked;
         public List<ExtMenuItemState> childItems;
+        /**
+         * True if the item has child items that are not included in
+         * {@link #childItems} but loaded when the sub-menu is opened.
+         */
+        public boolean lazyChildItems;
         public String styleName;
         public boolean link;
         public static final String locationResource = "url";
         public String target = "_blank";
         public String features;
         public String url;
-        public Map<String, String> parameters = new HashMap<>();
+        /** Null unless the item has parameters. */
+        public Map<String, String> parameters;
 
     }
 }
@@ -0,0 +1,30 @@
+package com.vaadin.contextmenu.client;
+
+import java.io.Serializable;
+
+/**
+ * Properties of items in the shared state that are changed for one opening
+ * of the menu only, e.g. for the clicked row of a grid. Sent with
+ * {@link ContextMenuClientRpc#showContextMenuWithOverrides(int, int, MenuItemOverrides)}
+ * instead of the changed items, so that a row specific menu costs a few
+ * numbers per item. The overrides are dropped the next time the menu is
+ * opened.
+ */
+@SuppressWarnings("serial")
+public class MenuItemOverrides implements Serializable {
+
+    public static final int ENABLED = CompactMenuItems.ENABLED;
+    public static final int CHECKED = CompactMenuItems.CHECKED;
+    public static final int VISIBLE = 1 << 6;
+    /** Only used in {@link #masks}, the text is in {@link #texts}. */
+    public static final int TEXT = 1 << 7;
+
+    /** The ids of the overridden items. */
+    public int[] ids;
+    /** The overridden properties of each item, as flags. */
+    public int[] masks;
+    /** The values of the overridden boolean properties of each item. */
+    public int[] values;
+    /** The overridden texts of each item, null if no text is overridden. */
+    public String[] texts;
+}
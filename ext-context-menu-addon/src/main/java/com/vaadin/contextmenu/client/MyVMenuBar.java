@@ -1,9 +1,20 @@
 package com.vaadin.contextmenu.client;
 
+import java.util.List;
+
 import com.google.gwt.core.client.Scheduler;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Style.Overflow;
+import com.google.gwt.dom.client.Style.Unit;
 import com.google.gwt.event.dom.client.KeyCodes;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
+import com.google.gwt.event.logical.shared.CloseEvent;
+import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.ui.PopupPanel;
 import com.vaadin.client.ui.VMenuBar;
 import com.vaadin.client.ui.VOverlay;
 
@@ -13,9 +24,89 @@ import com.vaadin.client.ui.VOverlay;
  */
 public class MyVMenuBar extends VMenuBar {
 
+    /**
+     * Loads the items of a sub-menu that are not sent to the client up front.
+     */
+    public interface SubMenuLoader {
+        /**
+         * Called before the sub-menu of the item is shown.
+         * 
+         * @param item
+         *            the item whose sub-menu is about to be shown
+         * @return true if the sub-menu can be shown, false if its items are
+         *         being loaded and it will be shown with
+         *         {@link MyVMenuBar#showChildMenuIfSelected(CustomMenuItem)}
+         *         once they are available
+         */
+        boolean prepareSubMenu(CustomMenuItem item);
+    }
+
+    /**
+     * Provides the items of a menu that only renders the items in view. Items
+     * are requested by index when they are scrolled into view.
+     */
+    public interface VirtualItemSource {
+        /**
+         * @return the number of items in the menu
+         */
+        int getItemCount();
+
+        /**
+         * Gets the item at the index. The same item should be returned for
+         * the same index, so that e.g. the selection survives scrolling. The
+         * menu adds the item to its DOM.
+         * 
+         * @param index
+         *            the index of the item
+         * @return the item at the index
+         */
+        CustomMenuItem getItem(int index);
+    }
+
+    /**
+     * Handles clicks on items before the menu does.
+     */
+    public interface ItemClickHandler {
+        /**
+         * Called when an item without a sub-menu is clicked or selected with
+         * the keyboard.
+         * 
+         * @param item
+         *            the clicked item
+         * @return true if the click was handled and the menu should stay
+         *         open, false to run the command of the item and close the
+         *         menu as usual
+         */
+        boolean onItemClick(CustomMenuItem item);
+    }
+
+    /** Number of items shown without scrolling in a virtual menu. */
+    private static final int VIRTUAL_VISIBLE_ITEMS = 20;
+    /** Number of items rendered above and below the visible ones. */
+    private static final int VIRTUAL_BUFFER_ITEMS = 10;
+
     // FIXME: this should be properly set for all context menus
     private boolean isContextMenu = true;
 
+    /**
+     * How close to the last loaded item the selection must move before more
+     * items are requested.
+     */
+    private static final int MORE_ITEMS_THRESHOLD = 5;
+
+    private SubMenuLoader subMenuLoader;
+    private Command moreItemsLoader;
+    private Command childMenuCloseHandler;
+    private ItemClickHandler itemClickHandler;
+
+    private VirtualItemSource virtualItemSource;
+    private HandlerRegistration scrollHandlerRegistration;
+    private Element topSpacer;
+    private Element bottomSpacer;
+    private int firstRenderedIndex;
+    private int selectedVirtualIndex = -1;
+    private int itemHeight;
+
     public MyVMenuBar() {
     }
 
@@ -28,12 +119,294 @@ public class MyVMenuBar extends VMenuBar {
         return new MyVOverlay(true, false);
     }
 
+    public void setSubMenuLoader(SubMenuLoader subMenuLoader) {
+        this.subMenuLoader = subMenuLoader;
+    }
+
+    /**
+     * Sets the command that requests more items for this menu when the
+     * selection gets close to the last item. Used for menus whose items are
+     * fetched in pages. Set null when all items have been loaded.
+     * 
+     * @param moreItemsLoader
+     *            the command requesting more items
+     */
+    public void setMoreItemsLoader(Command moreItemsLoader) {
+        this.moreItemsLoader = moreItemsLoader;
+    }
+
+    @Override
+    public void setSelected(CustomMenuItem item) {
+        super.setSelected(item);
+        int index = items.indexOf(item);
+        if (virtualItemSource != null && index >= 0) {
+            index += firstRenderedIndex;
+            selectedVirtualIndex = index;
+        }
+        if (moreItemsLoader != null && index >= 0
+                && index >= getItemCount() - MORE_ITEMS_THRESHOLD) {
+            moreItemsLoader.execute();
+        }
+    }
+
+    private int getItemCount() {
+        if (virtualItemSource != null) {
+            return virtualItemSource.getItemCount();
+        }
+        return items.size();
+    }
+
+    /**
+     * Switches this menu to render only the items in view, plus a buffer
+     * above and below them, instead of one element per item. The height of
+     * the scrollable area is computed from the item count, assuming that all
+     * items are as high as the first one. Set null to switch back to adding
+     * items normally. Any items in the menu are removed.
+     * 
+     * @param virtualItemSource
+     *            the source of the items
+     */
+    public void setVirtualItemSource(VirtualItemSource virtualItemSource) {
+        clearItems();
+        if (virtualItemSource == null) {
+            return;
+        }
+        this.virtualItemSource = virtualItemSource;
+        firstRenderedIndex = 0;
+        selectedVirtualIndex = -1;
+        if (topSpacer == null) {
+            topSpacer = Document.get().createDivElement();
+            bottomSpacer = Document.get().createDivElement();
+        }
+        scrollHandlerRegistration = addDomHandler(new ScrollHandler() {
+            @Override
+            public void onScroll(ScrollEvent event) {
+                renderVirtualItems(false);
+            }
+        }, ScrollEvent.getType());
+        getElement().getStyle().setOverflowY(Overflow.AUTO);
+        getElement().setScrollTop(0);
+        renderVirtualItems(true);
+    }
+
+    public boolean isVirtual() {
+        return virtualItemSource != null;
+    }
+
+    @Override
+    public void clearItems() {
+        super.clearItems();
+        if (virtualItemSource != null) {
+            virtualItemSource = null;
+            scrollHandlerRegistration.removeHandler();
+            scrollHandlerRegistration = null;
+            getElement().getStyle().clearOverflowY();
+            getElement().getStyle().clearProperty("maxHeight");
+            itemHeight = 0;
+        }
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        if (virtualItemSource != null && itemHeight == 0) {
+            // the items could not be measured while detached
+            renderVirtualItems(true);
+        }
+    }
+
+    /**
+     * Renders the items around the current scroll position of a virtual
+     * menu.
+     */
+    private void renderVirtualItems(boolean force) {
+        int count = virtualItemSource.getItemCount();
+        int first = 0;
+        if (itemHeight > 0) {
+            first = Math.max(0, getElement().getScrollTop() / itemHeight
+                    - VIRTUAL_BUFFER_ITEMS);
+        }
+        int last = Math.min(count,
+                first + VIRTUAL_VISIBLE_ITEMS + 2 * VIRTUAL_BUFFER_ITEMS);
+        if (!force && first == firstRenderedIndex
+                && last == firstRenderedIndex + items.size()) {
+            return;
+        }
+
+        for (CustomMenuItem item : items) {
+            item.getElement().removeFromParent();
+        }
+        items.clear();
+        containerElement.insertFirst(topSpacer);
+        containerElement.appendChild(bottomSpacer);
+        for (int i = first; i < last; i++) {
+            CustomMenuItem item = virtualItemSource.getItem(i);
+            item.setParentMenu(this);
+            containerElement.insertBefore(item.getElement(), bottomSpacer);
+            items.add(item);
+        }
+        firstRenderedIndex = first;
+
+        if (itemHeight == 0 && !items.isEmpty()) {
+            itemHeight = items.get(0).getOffsetHeight();
+            if (itemHeight > 0) {
+                getElement().getStyle().setProperty("maxHeight",
+                        VIRTUAL_VISIBLE_ITEMS * itemHeight + "px");
+            }
+        }
+        topSpacer.getStyle().setHeight(first * itemHeight, Unit.PX);
+        bottomSpacer.getStyle().setHeight((count - last) * itemHeight,
+                Unit.PX);
+
+        if (moreItemsLoader != null && last >= count - MORE_ITEMS_THRESHOLD) {
+            moreItemsLoader.execute();
+        }
+    }
+
+    /**
+     * Moves the selection of a virtual menu to the next selectable item in
+     * the given direction, scrolling it into view.
+     */
+    private void moveVirtualSelection(int step) {
+        int count = virtualItemSource.getItemCount();
+        if (count == 0) {
+            return;
+        }
+        int index = getSelected() != null ? selectedVirtualIndex
+                : (step > 0 ? -1 : count);
+        for (int i = 0; i < count; i++) {
+            index = (index + step + count) % count;
+            if (virtualItemSource.getItem(index).isSelectable()) {
+                break;
+            }
+        }
+
+        if (itemHeight > 0) {
+            Element element = getElement();
+            int top = index * itemHeight;
+            if (top < element.getScrollTop()) {
+                element.setScrollTop(top);
+            } else if (top + itemHeight > element.getScrollTop()
+                    + element.getClientHeight()) {
+                element.setScrollTop(
+                        top + itemHeight - element.getClientHeight());
+            }
+        }
+        renderVirtualItems(false);
+        setSelected(virtualItemSource.getItem(index));
+        selectedVirtualIndex = index;
+    }
+
+    /**
+     * Replaces the items of this menu with the given ones, moving the
+     * elements of the items that are kept instead of recreating them. The
+     * selection is kept if the selected item is still in the menu.
+     * 
+     * @param newItems
+     *            the items of the menu in order
+     */
+    public void setItems(List<CustomMenuItem> newItems) {
+        CustomMenuItem selected = getSelected();
+        if (selected != null && !newItems.contains(selected)) {
+            hideChildMenu(selected);
+            setSelected(null);
+        }
+        for (CustomMenuItem item : items) {
+            item.getElement().removeFromParent();
+        }
+        items.clear();
+        for (CustomMenuItem item : newItems) {
+            item.setParentMenu(this);
+            containerElement.appendChild(item.getElement());
+            items.add(item);
+        }
+    }
+
+    /**
+     * Hides the sub-menu of the item if it is open.
+     * 
+     * @param item
+     *            the item of this menu whose sub-menu to hide
+     */
+    public void hideChildMenu(CustomMenuItem item) {
+        if (visibleChildMenu != null && visibleChildMenu == item.getSubMenu()) {
+            hideChildren();
+        }
+    }
+
+    /**
+     * Updates the position and size of the popup of this menu after items
+     * have been added to it while it is showing.
+     */
+    public void itemsAdded() {
+        if (virtualItemSource != null) {
+            renderVirtualItems(true);
+        }
+        if (getParentMenu() != null) {
+            VOverlay parentPopup = ((MyVMenuBar) getParentMenu()).popup;
+            if (parentPopup != null && parentPopup.isShowing()) {
+                parentPopup.positionOrSizeUpdated();
+            }
+        }
+    }
+
+    /**
+     * Sets the command run when the popup of a sub-menu of this menu is
+     * closed, either by selecting an item or by clicking outside of it.
+     * 
+     * @param childMenuCloseHandler
+     *            the command to run, or null
+     */
+    public void setChildMenuCloseHandler(Command childMenuCloseHandler) {
+        this.childMenuCloseHandler = childMenuCloseHandler;
+    }
+
+    @Override
+    public void onClose(CloseEvent<PopupPanel> event) {
+        super.onClose(event);
+        if (childMenuCloseHandler != null) {
+            childMenuCloseHandler.execute();
+        }
+    }
+
+    public void setItemClickHandler(ItemClickHandler itemClickHandler) {
+        this.itemClickHandler = itemClickHandler;
+    }
+
+    @Override
+    public void itemClick(CustomMenuItem item) {
+        if (itemClickHandler != null && item.getSubMenu() == null
+                && itemClickHandler.onItemClick(item)) {
+            return;
+        }
+        super.itemClick(item);
+    }
+
     // overridden to be visible for the connector
     @Override
     protected void showChildMenuAt(CustomMenuItem item, int top, int left) {
+        if (subMenuLoader != null && !subMenuLoader.prepareSubMenu(item)) {
+            return;
+        }
         super.showChildMenuAt(item, top, left);
     }
 
+    /**
+     * Shows the sub-menu of the item if the item is still selected and no
+     * other sub-menu has been opened meanwhile.
+     * 
+     * @param item
+     *            the item whose sub-menu has been loaded
+     */
+    public void showChildMenuIfSelected(CustomMenuItem item) {
+        if (isAttached() && getSelected() == item && visibleChildMenu == null
+                && item.getSubMenu() != null
+                && !item.getSubMenu().getItems().isEmpty()) {
+            showChildMenu(item);
+            menuVisible = true;
+        }
+    }
+
     // this method has a couple lines added, marked with FIXME
     @Override
     public boolean handleNavigation(int keycode, boolean ctrl, boolean shift) {
@@ -51,6 +424,14 @@ public class MyVMenuBar extends VMenuBar {
             return false;
         }
 
+        if (virtualItemSource != null && visibleChildMenu == null
+                && (keycode == getNavigationUpKey()
+                        || keycode == getNavigationDownKey())) {
+            // items[] only holds the rendered ones, navigate by index instead
+            moveVirtualSelection(keycode == getNavigationDownKey() ? 1 : -1);
+            return true;
+        }
+
         if (keycode == getNavigationLeftKey()) {
             if (getSelected() == null) {
                 // If nothing is selected then select the last item
@@ -134,7 +515,10 @@ public class MyVMenuBar extends VMenuBar {
                 // there
                 showChildMenu(getSelected());
                 menuVisible = true;
-                visibleChildMenu.handleNavigation(keycode, ctrl, shift);
+                // null while the items of the sub-menu are being loaded
+                if (visibleChildMenu != null) {
+                    visibleChildMenu.handleNavigation(keycode, ctrl, shift);
+                }
             } else if (visibleChildMenu == null && !isContextMenu /* FIXME */) {
 
                 // Get the root menu
@@ -232,12 +616,20 @@ public class MyVMenuBar extends VMenuBar {
             } else if (visibleChildMenu != null) {
                 // Redirect all navigation to the submenu
                 visibleChildMenu.handleNavigation(keycode, ctrl, shift);
-                menuVisible = false;
+                // FIXME: added condition, the submenu stays open if the item
+                // was handled by the item click handler
+                if (visibleChildMenu == null) {
+                    menuVisible = false;
+                }
             } else if (visibleChildMenu == null
                     && getSelected().getSubMenu() != null) {
                 // If the item has a sub menu then show it and move the
                 // selection there
                 openMenuAndFocusFirstIfPossible(getSelected());
+            } else if (itemClickHandler != null
+                    && itemClickHandler.onItemClick(getSelected())) {
+                // FIXME: this branch added, handled in place
+                return true;
             } else {
                 final Command command = getSelected().getCommand();
 
@@ -26,4 +26,13 @@ public class VExtMenuItem extends CustomMenuItem {
         this.description = description;
     }
 
+    /**
+     * Hidden items, e.g. ones hidden for one opening of the menu, are skipped
+     * by keyboard navigation.
+     */
+    @Override
+    public boolean isSelectable() {
+        return super.isSelectable() && isVisible();
+    }
+
 }
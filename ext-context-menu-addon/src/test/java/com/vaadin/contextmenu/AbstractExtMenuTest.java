@@ -0,0 +1,284 @@
+package com.vaadin.contextmenu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.contextmenu.ExtMenu.AsyncCommand;
+import com.vaadin.data.provider.DataProvider;
+
+public class AbstractExtMenuTest {
+
+    @Test
+    public void itemClicked_nestedItem_commandIsRun() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem child = parent.addItem("Child", null, null);
+        ExtMenuItem grandChild = child.addItem("Grand child",
+                selectedItem -> selected.add(selectedItem));
+
+        menu.itemClicked(grandChild.getId());
+
+        Assert.assertEquals(1, selected.size());
+        Assert.assertSame(grandChild, selected.get(0));
+    }
+
+    @Test
+    public void itemClicked_disabledOrHiddenItem_commandNotRun() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        ExtMenuItem disabled = menu.addItem("Disabled",
+                selectedItem -> selected.add(selectedItem));
+        disabled.setEnabled(false);
+        ExtMenuItem hidden = menu.addItem("Hidden",
+                selectedItem -> selected.add(selectedItem));
+        hidden.setVisible(false);
+
+        menu.itemClicked(disabled.getId());
+        menu.itemClicked(hidden.getId());
+
+        Assert.assertTrue(selected.isEmpty());
+    }
+
+    @Test
+    public void findItemById_removedItems_notFound() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem child = parent.addItem("Child", null, null);
+        ExtMenuItem other = menu.addItem("Other", null);
+
+        Assert.assertSame(child, menu.findItemById(child.getId()));
+
+        parent.removeChild(child);
+        Assert.assertNull(menu.findItemById(child.getId()));
+
+        menu.removeItem(parent);
+        Assert.assertNull(menu.findItemById(parent.getId()));
+
+        menu.removeItems();
+        Assert.assertNull(menu.findItemById(other.getId()));
+    }
+
+    @Test
+    public void findItemById_itemAddedBefore_found() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem last = menu.addItem("Last", null);
+        ExtMenuItem first = menu.addItemBefore("First", null, null, last);
+        ExtMenuItem child = last.addItem("Child", null, null);
+        ExtMenuItem childBefore = last.addItemBefore("Before child", null,
+                null, child);
+
+        Assert.assertSame(first, menu.findItemById(first.getId()));
+        Assert.assertSame(childBefore, menu.findItemById(childBefore.getId()));
+    }
+
+    @Test
+    public void addItem_defaultAllocator_sequentialIds() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem first = menu.addItem("First", null);
+        ExtMenuItem child = first.addItem("Child", null, null);
+        ExtMenuItem second = menu.addItem("Second", null);
+
+        Assert.assertEquals(1, first.getId());
+        Assert.assertEquals(2, child.getId());
+        Assert.assertEquals(3, second.getId());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addItem_allocatorReturnsDuplicateId_throws() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        menu.setItemIdAllocator(() -> 42);
+        menu.addItem("First", null);
+        menu.addItem("Second", null);
+    }
+
+    @Test
+    public void findItemById_listsChangedDirectly_indexUpdated() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem child = new ExtMenuItemImpl(100, parent, "Child", null,
+                null);
+        ExtMenuItem other = new ExtMenuItemImpl("Other", null, null);
+
+        parent.addItem("First", null, null);
+        parent.getChildren().add(child);
+        menu.getItems().add(other);
+        Assert.assertSame(child, menu.findItemById(100));
+        Assert.assertSame(other, menu.findItemById(other.getId()));
+
+        menu.getItems().remove(parent);
+        Assert.assertNull(menu.findItemById(100));
+        Assert.assertFalse(menu.hasItem(parent.getId()));
+    }
+
+    @Test
+    public void addItem_duplicateId_menuUnchanged() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        menu.setItemIdAllocator(() -> 42);
+        ExtMenuItem first = menu.addItem("First", null);
+        try {
+            menu.addItem("Second", null);
+            Assert.fail("Duplicate id accepted");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            first.addItem("Child", null, null);
+            Assert.fail("Duplicate id accepted");
+        } catch (IllegalStateException expected) {
+        }
+
+        Assert.assertEquals(Arrays.asList(first), menu.getItems());
+        Assert.assertFalse(first.hasChildren());
+        Assert.assertSame(first, menu.findItemById(42));
+    }
+
+    @Test
+    public void itemChanges_propertyAndStructureChanges_tracked() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem child = parent.addItem("Child", null, null);
+        Assert.assertTrue(menu.isStructureChanged());
+        menu.clearChanges();
+
+        child.setCheckable(true);
+        child.setChecked(true);
+        Assert.assertFalse(menu.isStructureChanged());
+        Assert.assertEquals(1, menu.getChangedItems().size());
+        Assert.assertTrue(menu.getChangedItems().contains(child));
+
+        child.setVisible(false);
+        Assert.assertTrue(menu.isStructureChanged());
+        Assert.assertTrue(menu.getChangedItems().isEmpty());
+    }
+
+    @Test
+    public void loadChildItems_providerItems_indexedButNotTracked() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        parent.setChildItemProvider(item -> item.addItem("Child", null, null));
+        menu.clearChanges();
+        long modificationCount = menu.getModificationCount();
+
+        menu.loadChildItems(parent);
+        menu.loadChildItems(parent);
+
+        Assert.assertEquals(1, parent.getChildren().size());
+        ExtMenuItem child = parent.getChildren().get(0);
+        Assert.assertSame(child, menu.findItemById(child.getId()));
+        Assert.assertFalse(menu.isStructureChanged());
+        Assert.assertEquals(modificationCount, menu.getModificationCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void addItem_itemHasDataProviderItems_throws() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        parent.setDataProviderItems(new DataProviderMenuItems<String>(
+                DataProvider.ofItems("First"), caption -> caption, null));
+        parent.addItem("Child", null, null);
+    }
+
+    @Test
+    public void itemToggled_toggledOnClient_commandRunWithoutPatch() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        ExtMenuItem item = menu.addItem("Item",
+                selectedItem -> selected.add(selectedItem));
+        item.setCheckable(true);
+        menu.clearChanges();
+        long modificationCount = menu.getModificationCount();
+
+        menu.itemToggled(item.getId(), true);
+
+        Assert.assertTrue(item.isChecked());
+        Assert.assertEquals(1, selected.size());
+        Assert.assertTrue(menu.getChangedItems().isEmpty());
+        Assert.assertTrue(menu.getModificationCount() > modificationCount);
+    }
+
+    @Test
+    public void addItems_templateInTwoMenus_overlaysIndependent() {
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        ExtMenuTemplate.Builder builder = ExtMenuTemplate.builder();
+        builder.addItem("Parent", null, null)
+                .addItem("Check", null,
+                        selectedItem -> selected.add(selectedItem))
+                .setCheckable(true);
+        ExtMenuTemplate template = builder.build();
+
+        AbstractExtMenu first = new AbstractExtMenu();
+        AbstractExtMenu second = new AbstractExtMenu();
+        first.addItems(template);
+        second.addItems(template);
+        ExtMenuItem firstCheck = first.getItems().get(0).getChildren().get(0);
+        ExtMenuItem secondCheck = second.getItems().get(0).getChildren()
+                .get(0);
+        Assert.assertEquals(firstCheck.getId(), secondCheck.getId());
+        Assert.assertEquals(1, template.getItems().get(0).getChildren().get(0)
+                .getIndex());
+        // as for items added to the menu directly
+        Assert.assertEquals(1, first.getItems().get(0).getSize());
+        Assert.assertEquals(-1, firstCheck.getSize());
+
+        first.itemClicked(firstCheck.getId());
+        second.getItems().get(0).setEnabled(false);
+
+        Assert.assertTrue(firstCheck.isChecked());
+        Assert.assertFalse(secondCheck.isChecked());
+        Assert.assertTrue(first.getItems().get(0).isEnabled());
+        Assert.assertEquals(Arrays.asList(firstCheck), selected);
+        Assert.assertSame(firstCheck.getParent(), first.getItems().get(0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void addItems_templateItem_sharedPropertiesReadOnly() {
+        ExtMenuTemplate.Builder builder = ExtMenuTemplate.builder();
+        builder.addItem("Item", null, null);
+        AbstractExtMenu menu = new AbstractExtMenu();
+        menu.addItems(builder.build());
+
+        menu.getItems().get(0).setText("Changed");
+    }
+
+    @Test
+    public void itemClicked_asyncCommand_runWithExecutorAndItemDisabled() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        menu.setCommandExecutor(tasks::add);
+        menu.setDisableItemsWhileRunning(true);
+        final List<String> results = new ArrayList<String>();
+        ExtMenuItem export = menu.addItem("Export", new AsyncCommand<String>() {
+            @Override
+            public CompletionStage<String> menuSelectedAsync(
+                    ExtMenuItem selectedItem) {
+                return CompletableFuture.completedFuture("exported");
+            }
+
+            @Override
+            public void menuCompleted(ExtMenuItem selectedItem, String result,
+                    Throwable failure) {
+                results.add(result);
+            }
+        });
+
+        menu.itemClicked(export.getId());
+        // sent before the client got the disabled state
+        menu.itemClicked(export.getId());
+
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertFalse(export.isEnabled());
+        Assert.assertTrue(results.isEmpty());
+
+        tasks.get(0).run();
+
+        Assert.assertTrue(export.isEnabled());
+        Assert.assertEquals(Arrays.asList("exported"), results);
+    }
+}
@@ -1,8 +1,31 @@
 package com.vaadin.contextmenu;
 
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.Assert;
 import org.junit.Test;
 
+import com.vaadin.contextmenu.ExtContextExtMenu.ContextMenuOpenListener.ContextMenuOpenEvent;
+import com.vaadin.contextmenu.ExtMenu.AsyncCommand;
+import com.vaadin.contextmenu.client.CompactMenuItems;
+import com.vaadin.contextmenu.client.ContextMenuServerRpc;
+import com.vaadin.contextmenu.client.ExtMenuSharedState.ExtMenuItemState;
+import com.vaadin.data.provider.DataProvider;
+import com.vaadin.event.ContextClickEvent;
+import com.vaadin.server.ClientMethodInvocation;
+import com.vaadin.server.JsonCodec;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.shared.MouseEventDetails;
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.UI;
+
 // JUnit tests here
 public class ExtContextExtMenuTest {
 
@@ -10,4 +33,279 @@ public class ExtContextExtMenuTest {
     public void thisAlwaysPasses() {
         Assert.assertEquals(true, true);
     }
+
+    @Test
+    public void beforeClientResponse_unchangedMenu_stateReused() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        ExtMenuItem item = contextMenu.addItem("Item", null);
+
+        contextMenu.beforeClientResponse(true);
+        CompactMenuItems menuItems = contextMenu.getState().menuItems;
+        long modificationCount = contextMenu.getModificationCount();
+
+        contextMenu.beforeClientResponse(false);
+        contextMenu.beforeClientResponse(true);
+        Assert.assertSame(menuItems, contextMenu.getState().menuItems);
+
+        item.setText("Changed");
+        Assert.assertTrue(
+                contextMenu.getModificationCount() > modificationCount);
+        contextMenu.beforeClientResponse(true);
+        Assert.assertNotSame(menuItems, contextMenu.getState().menuItems);
+    }
+
+    @Test
+    public void beforeClientResponse_thousandItems_compactJsonMuchSmaller()
+            throws Exception {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        // ten items per sub-menu
+        ExtMenuItem parent = null;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                parent = contextMenu.addItem("Group " + i, null);
+            } else {
+                parent.addItem("Item " + i, null, selectedItem -> {
+                });
+            }
+        }
+        contextMenu.beforeClientResponse(true);
+
+        // the state before the items were sent as CompactMenuItems
+        Type itemListType = ExtMenuItemState.class.getField("childItems")
+                .getGenericType();
+        int listSize = toJson(
+                contextMenu.convertItemsToState(contextMenu.getItems()),
+                itemListType).length();
+        int compactSize = toJson(contextMenu.getState().menuItems,
+                CompactMenuItems.class).length();
+        System.out.println("1000 items: " + listSize + " bytes as a list, "
+                + compactSize + " bytes compact");
+        Assert.assertTrue(listSize + " / " + compactSize,
+                listSize >= 5 * compactSize);
+    }
+
+    private static String toJson(Object value, Type type) {
+        return JsonCodec.encode(value, null, type, null).getEncodedValue()
+                .toJson();
+    }
+
+    @Test
+    public void beforeClientResponse_itemChanged_stateKeptUntilInitial() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        ExtMenuItem item = contextMenu.addItem("Item", null);
+        contextMenu.beforeClientResponse(true);
+        CompactMenuItems menuItems = contextMenu.getState().menuItems;
+
+        item.setText("Changed");
+        contextMenu.beforeClientResponse(false);
+        Assert.assertSame(menuItems, contextMenu.getState().menuItems);
+
+        contextMenu.beforeClientResponse(true);
+        Assert.assertEquals("Changed", CompactMenuItems
+                .decode(contextMenu.getState().menuItems).get(0).text);
+    }
+
+    @Test
+    public void menuBuilder_builtItemClicked_commandRunUntilClosed() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        final List<ExtMenuItem> built = new ArrayList<ExtMenuItem>();
+        contextMenu.setMenuBuilder((menu, event) -> built
+                .add(menu.addItem("Built", item -> selected.add(item))));
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        contextMenu.getContextClickListener().contextClick(
+                new ContextClickEvent(new Button(), new MouseEventDetails()));
+        int builtItemId = built.get(0).getId();
+        rpc.itemClicked(builtItemId, true);
+        Assert.assertEquals(1, selected.size());
+
+        rpc.menuClosed();
+        contextMenu.beforeClientResponse(false);
+        rpc.itemClicked(builtItemId, true);
+        Assert.assertEquals(1, selected.size());
+        Assert.assertNull(contextMenu.getState().menuItems);
+    }
+
+    @Test
+    public void openOnClient_openedOnClient_openListenersNotified() {
+        Button button = new Button();
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(button, true);
+        final List<ContextMenuOpenEvent> events = new ArrayList<ContextMenuOpenEvent>();
+        contextMenu.addContextMenuOpenListener(event -> events.add(event));
+        contextMenu.setOpenOnClient(true);
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        // the context click of the extended component is handled by the client
+        contextMenu.getContextClickListener().contextClick(
+                new ContextClickEvent(button, new MouseEventDetails()));
+        Assert.assertTrue(events.isEmpty());
+
+        rpc.contextMenuOpened(new MouseEventDetails());
+        Assert.assertEquals(1, events.size());
+        Assert.assertSame(button, events.get(0).getSourceComponent());
+    }
+
+    @Test
+    public void openListenerRemoved_lastListener_clientNotNotified() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        Registration first = contextMenu
+                .addContextMenuOpenListener(event -> {
+                });
+        Registration second = contextMenu
+                .addContextMenuOpenListener(event -> {
+                });
+        Assert.assertTrue(contextMenu.getState(false).hasOpenListeners);
+
+        first.remove();
+        Assert.assertTrue(contextMenu.getState(false).hasOpenListeners);
+        second.remove();
+        Assert.assertFalse(contextMenu.getState(false).hasOpenListeners);
+    }
+
+    @Test
+    public void itemClicked_asyncCommandOfDetachedUi_completedWithItemEnabled() {
+        Button button = new Button();
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        ui.setContent(button);
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(button, false);
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        contextMenu.setCommandExecutor(tasks::add);
+        contextMenu.setDisableItemsWhileRunning(true);
+        final List<String> results = new ArrayList<String>();
+        ExtMenuItem export = contextMenu.addItem("Export",
+                new AsyncCommand<String>() {
+                    @Override
+                    public CompletionStage<String> menuSelectedAsync(
+                            ExtMenuItem selectedItem) {
+                        return CompletableFuture.completedFuture("exported");
+                    }
+
+                    @Override
+                    public void menuCompleted(ExtMenuItem selectedItem,
+                            String result, Throwable failure) {
+                        results.add(result);
+                    }
+                });
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        rpc.itemClicked(export.getId(), true);
+        Assert.assertFalse(export.isEnabled());
+
+        // the UI has no session, like a UI closed while the command runs
+        tasks.get(0).run();
+        Assert.assertTrue(export.isEnabled());
+        Assert.assertEquals(Arrays.asList("exported"), results);
+    }
+
+    @Test
+    public void loadChildItems_dataProviderItems_sizeQueriedOncePerOpening() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        final List<String> rows = Arrays.asList("First", "Second", "Third");
+        final AtomicInteger sizeQueries = new AtomicInteger();
+        final List<String> selected = new ArrayList<String>();
+        DataProviderMenuItems<String> dataItems = new DataProviderMenuItems<String>(
+                DataProvider.fromCallbacks(
+                        query -> rows.stream().skip(query.getOffset())
+                                .limit(query.getLimit()),
+                        query -> {
+                            sizeQueries.incrementAndGet();
+                            return rows.size();
+                        }),
+                caption -> caption, selected::add);
+        dataItems.setPageSize(2);
+        ExtMenuItem parent = contextMenu.addItem("Parent", null);
+        parent.setDataProviderItems(dataItems);
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        rpc.loadChildItems(parent.getId(), 0);
+        rpc.loadChildItems(parent.getId(), 2);
+        List<ExtMenuItemState> sent = sentChildItems(contextMenu);
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals("Third", sent.get(2).text);
+        Assert.assertEquals(1, sizeQueries.get());
+
+        rpc.itemClicked(sent.get(2).id, true);
+        Assert.assertEquals(Arrays.asList("Third"), selected);
+
+        // opening the sub-menu again starts over
+        rpc.loadChildItems(parent.getId(), 0);
+        Assert.assertEquals(2, sizeQueries.get());
+        rpc.itemClicked(sent.get(2).id, true);
+        Assert.assertEquals(1, selected.size());
+
+        int first = sentChildItems(contextMenu).get(0).id;
+        contextMenu.removeItem(parent);
+        rpc.itemClicked(first, true);
+        Assert.assertEquals(1, selected.size());
+    }
+
+    private static List<ExtMenuItemState> sentChildItems(
+            ExtContextExtMenu contextMenu) {
+        List<ExtMenuItemState> items = new ArrayList<ExtMenuItemState>();
+        for (ClientMethodInvocation invocation : contextMenu
+                .retrievePendingRpcCalls()) {
+            if ("setChildItems".equals(invocation.getMethodName())) {
+                items.addAll(CompactMenuItems.decode(
+                        (CompactMenuItems) invocation.getParameters()[2]));
+            }
+        }
+        return items;
+    }
+
+    @Test
+    public void updateState_compactItems_decodedToSameTree() {
+        ExtContextExtMenu contextMenu = new ExtContextExtMenu(new Button(),
+                false);
+        ExtMenuItem parent = contextMenu.addItem("Parent", null);
+        parent.setStyleName("bold");
+        ExtMenuItem child = parent.addItem("Child", null, null);
+        child.setCheckable(true);
+        child.setChecked(true);
+        child.setDescription("Description");
+        ExtMenuItem link = contextMenu.addItem("Link", true,
+                "http://vaadin.com", "_self");
+        link.setStyleName("bold");
+        contextMenu.beforeClientResponse(true);
+
+        List<ExtMenuItemState> items = CompactMenuItems
+                .decode(contextMenu.getState().menuItems);
+
+        Assert.assertEquals(2, items.size());
+        ExtMenuItemState parentState = items.get(0);
+        Assert.assertEquals(parent.getId(), parentState.id);
+        Assert.assertEquals("bold", parentState.styleName);
+        Assert.assertEquals(1, parentState.childItems.size());
+        ExtMenuItemState childState = parentState.childItems.get(0);
+        Assert.assertEquals("Child", childState.text);
+        Assert.assertTrue(childState.checkable);
+        Assert.assertTrue(childState.checked);
+        Assert.assertTrue(childState.enabled);
+        Assert.assertEquals("Description", childState.description);
+        Assert.assertEquals("_blank", childState.target);
+        ExtMenuItemState linkState = items.get(1);
+        Assert.assertTrue(linkState.link);
+        Assert.assertEquals("http://vaadin.com", linkState.url);
+        Assert.assertEquals("_self", linkState.target);
+        Assert.assertEquals(1,
+                contextMenu.getState().menuItems.styleNames.length);
+    }
 }
@@ -0,0 +1,44 @@
+package com.vaadin.contextmenu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtMenuExecutorsTest {
+
+    @Test
+    public void boundedExecutor_limitReached_tasksWaitThenRejected() {
+        List<Runnable> running = new ArrayList<>();
+        List<String> ran = new ArrayList<>();
+        Executor executor = new ExtMenuExecutors.BoundedExecutor(running::add,
+                2, 1);
+
+        executor.execute(() -> ran.add("a"));
+        executor.execute(() -> ran.add("b"));
+        executor.execute(() -> ran.add("c"));
+        Assert.assertEquals(2, running.size());
+        try {
+            executor.execute(() -> ran.add("d"));
+            Assert.fail("The full queue should reject the task");
+        } catch (RejectedExecutionException expected) {
+        }
+
+        // completing a task starts the waiting one
+        running.remove(0).run();
+        Assert.assertEquals(2, running.size());
+        running.remove(0).run();
+        running.remove(0).run();
+        Assert.assertEquals(0, running.size());
+
+        executor.execute(() -> ran.add("e"));
+        executor.execute(() -> ran.add("f"));
+        Assert.assertEquals(2, running.size());
+        running.remove(0).run();
+        running.remove(0).run();
+        Assert.assertEquals("[a, b, c, e, f]", ran.toString());
+    }
+}
@@ -0,0 +1,78 @@
+package com.vaadin.contextmenu;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtMenuItemFootprintTest {
+
+    /**
+     * The most bytes an item with default properties may take, counted as its
+     * shallow size on a 64-bit JVM with compressed references: object header,
+     * references and primitives, aligned to 8 bytes. The caption, icon and
+     * command are shared or owned by the application and not counted.
+     */
+    private static final int BYTES_PER_ITEM_BUDGET = 64;
+
+    @Test
+    public void shallowSize_item_withinBudget() {
+        long itemSize = shallowSize(ExtMenuItemImpl.class);
+        System.out.println("ExtMenuItemImpl: " + itemSize
+                + " bytes per item, " + itemSize * 1000
+                + " bytes for 1000 items");
+        Assert.assertTrue("An item takes " + itemSize + " bytes",
+                itemSize <= BYTES_PER_ITEM_BUDGET);
+    }
+
+    @Test
+    public void addItem_defaultProperties_noExtrasAllocated()
+            throws Exception {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem item = menu.addItem("Item", null);
+        item.setDescription(null);
+        item.setTarget("_blank");
+        item.setChildItemProvider(null);
+        item.setDataProviderItems(null);
+
+        Assert.assertNull(extras(item));
+
+        item.setDescription("Description");
+        Assert.assertNotNull(extras(item));
+        Assert.assertEquals("_blank", item.getTarget());
+    }
+
+    private static Object extras(ExtMenuItem item) throws Exception {
+        Field extras = ExtMenuItemImpl.class.getDeclaredField("extras");
+        extras.setAccessible(true);
+        return extras.get(item);
+    }
+
+    private static long shallowSize(Class<?> type) {
+        // mark word and compressed class pointer
+        long size = 12;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += fieldSize(field.getType());
+                }
+            }
+        }
+        return (size + 7) / 8 * 8;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        // compressed reference
+        return 4;
+    }
+}
@@ -0,0 +1,111 @@
+package com.vaadin.contextmenu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ListIterator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtMenuItemListTest {
+
+    private final ExtMenuItem first = new ExtMenuItemImpl("First", null, null);
+    private final ExtMenuItem second = new ExtMenuItemImpl("Second", null,
+            null);
+    private final ExtMenuItem third = new ExtMenuItemImpl("Third", null, null);
+    private final List<ExtMenuItem> removed = new ArrayList<>();
+    private final ExtMenuItemList.Owner owner = new ExtMenuItemList.Owner() {
+        @Override
+        public void itemAdding(ExtMenuItem item) {
+        }
+
+        @Override
+        public void itemRemoved(ExtMenuItem item) {
+            removed.add(item);
+        }
+    };
+
+    @Test
+    public void addBefore_knownAndUnknownAnchor_insertedInOrder() {
+        ExtMenuItemList list = new ExtMenuItemList(owner);
+        list.add(third);
+        list.addBefore(first, third);
+        list.addBefore(second, third);
+        ExtMenuItem last = new ExtMenuItemImpl("Last", null, null);
+        list.addBefore(last, new ExtMenuItemImpl("Other", null, null));
+
+        Assert.assertEquals(Arrays.asList(first, second, third, last), list);
+        Assert.assertEquals(2, list.indexOf(third));
+    }
+
+    @Test
+    public void remove_itemsAndIterator_linksKept() {
+        ExtMenuItemList list = new ExtMenuItemList(owner);
+        list.addAll(Arrays.asList(first, second, third));
+
+        Assert.assertTrue(list.remove(second));
+        Assert.assertFalse(list.remove(second));
+        Assert.assertFalse(list.contains(second));
+        list.addBefore(second, third);
+        Assert.assertEquals(Arrays.asList(first, second, third), list);
+
+        ListIterator<ExtMenuItem> iterator = list.listIterator(3);
+        Assert.assertSame(third, iterator.previous());
+        iterator.remove();
+        Assert.assertSame(second, iterator.previous());
+        iterator.add(third);
+        Assert.assertEquals(Arrays.asList(first, third, second), list);
+    }
+
+    @Test
+    public void sort_menuItems_reorderedInPlace() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem charlie = menu.addItem("Charlie", null);
+        ExtMenuItem alpha = menu.addItem("Alpha", null);
+        ExtMenuItem bravo = menu.addItem("Bravo", null);
+        ExtMenuItem child = bravo.addItem("Child", null, null);
+
+        List<ExtMenuItem> items = menu.getItems();
+        items.sort(Comparator.comparing(ExtMenuItem::getText));
+        Assert.assertEquals(Arrays.asList(alpha, bravo, charlie), items);
+
+        Assert.assertEquals(3, menu.getSize());
+        Assert.assertSame(child, menu.findItemById(child.getId()));
+        Assert.assertTrue(items.remove(charlie));
+        Assert.assertEquals(Arrays.asList(alpha, bravo), items);
+    }
+
+    @Test
+    public void set_itemAlreadyInList_throwsAndListUnchanged() {
+        ExtMenuItemList list = new ExtMenuItemList(owner);
+        list.addAll(Arrays.asList(first, second, third));
+
+        try {
+            list.set(0, third);
+            Assert.fail("Setting an item that is in the list should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Collections.swap(list, 0, 2);
+            Assert.fail("Swapping items should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+        Assert.assertEquals(Arrays.asList(first, second, third), list);
+        Assert.assertTrue(removed.isEmpty());
+
+        ExtMenuItem other = new ExtMenuItemImpl("Other", null, null);
+        Assert.assertSame(second, list.set(1, other));
+        Assert.assertEquals(Arrays.asList(first, other, third), list);
+        Assert.assertEquals(Arrays.asList(second), removed);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_itemAlreadyInList_throws() {
+        ExtMenuItemList list = new ExtMenuItemList(owner);
+        list.add(first);
+        list.add(first);
+    }
+}
@@ -0,0 +1,145 @@
+package com.vaadin.contextmenu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.contextmenu.ExtMenu.Command;
+
+public class ExtMenuSerializationTest {
+
+    private static final AtomicInteger registeredClicks = new AtomicInteger();
+
+    private static final Command REGISTERED_COMMAND = ExtMenuCommandRegistry
+            .register(ExtMenuSerializationTest.class.getName() + ".click",
+                    selectedItem -> registeredClicks.incrementAndGet());
+
+    @Test
+    public void serialize_menuTree_structureAndIndexRestored() throws Exception {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem child = parent.addItem("Child", null, REGISTERED_COMMAND);
+        child.setDescription("Description");
+        child.setCheckable(true);
+        child.setChecked(true);
+        menu.addItem("Link", true, "http://vaadin.com", "_self");
+
+        AbstractExtMenu copy = roundTrip(menu);
+
+        Assert.assertEquals(2, copy.getSize());
+        ExtMenuItem copiedParent = copy.getItems().get(0);
+        ExtMenuItem copiedChild = copy.findItemById(child.getId());
+        Assert.assertSame(copiedParent, copiedChild.getParent());
+        Assert.assertEquals("Description", copiedChild.getDescription());
+        Assert.assertTrue(copiedChild.isChecked());
+        Assert.assertSame(REGISTERED_COMMAND, copiedChild.getCommand());
+        Assert.assertEquals("_self", copy.getItems().get(1).getTarget());
+        Assert.assertEquals(menu.getModificationCount(),
+                copy.getModificationCount());
+
+        int clicks = registeredClicks.get();
+        copy.itemClicked(copiedChild.getId());
+        Assert.assertEquals(clicks + 1, registeredClicks.get());
+        Assert.assertFalse(copiedChild.isChecked());
+
+        // new ids continue from where the original menu was
+        Assert.assertEquals(menu.addItem("New", null).getId(),
+                copy.addItem("New", null).getId());
+    }
+
+    @Test
+    public void serialize_registeredCommands_smallerThanSerializedCommands()
+            throws Exception {
+        AbstractExtMenu lambdaMenu = new AbstractExtMenu();
+        AbstractExtMenu registeredMenu = new AbstractExtMenu();
+        for (int i = 0; i < 100; i++) {
+            ExtMenuItem lambdaParent = lambdaMenu.addItem("Group " + i, null);
+            ExtMenuItem registeredParent = registeredMenu
+                    .addItem("Group " + i, null);
+            for (int j = 0; j < 10; j++) {
+                // commands typically capture something about their item
+                String caption = "Item " + j;
+                lambdaParent.addItem(caption, null,
+                        selectedItem -> selectedItem.setText(caption));
+                registeredParent.addItem("Item " + j, null,
+                        REGISTERED_COMMAND);
+            }
+        }
+
+        byte[] lambdaBytes = serialize(lambdaMenu);
+        byte[] registeredBytes = serialize(registeredMenu);
+
+        Assert.assertTrue(registeredBytes.length < lambdaBytes.length);
+    }
+
+    @Test
+    public void serialize_namedTemplatesBuiltInOtherOrder_itemsResolved()
+            throws Exception {
+        String files = ExtMenuSerializationTest.class.getName() + ".files";
+        String edit = ExtMenuSerializationTest.class.getName() + ".edit";
+        List<String> clicks = new ArrayList<String>();
+        try {
+            AbstractExtMenu menu = new AbstractExtMenu();
+            menu.addItem("Own item", null);
+            ExtMenuTemplate filesTemplate = buildTemplate(files, "Open",
+                    clicks);
+            menu.addItems(buildTemplate(edit, "Copy", clicks));
+            menu.addItems(filesTemplate);
+            int openId = menu.getItems().get(2).getChildren().get(0).getId();
+            byte[] bytes = serialize(menu);
+
+            // another node builds the same templates in the other order
+            ExtMenuTemplate.unregister(files);
+            ExtMenuTemplate.unregister(edit);
+            buildTemplate(edit, "Copy", clicks);
+            buildTemplate(files, "Open", clicks);
+            AbstractExtMenu copy = deserialize(bytes);
+
+            ExtMenuItem open = copy.findItemById(openId);
+            Assert.assertEquals("Open", open.getText());
+            copy.itemClicked(openId);
+            Assert.assertEquals(Arrays.asList("Open"), clicks);
+        } finally {
+            ExtMenuTemplate.unregister(files);
+            ExtMenuTemplate.unregister(edit);
+        }
+    }
+
+    private static ExtMenuTemplate buildTemplate(String name, String caption,
+            List<String> clicks) {
+        ExtMenuTemplate.Builder builder = ExtMenuTemplate.builder(name);
+        builder.addItem(name, null, null).addItem(caption, null,
+                selectedItem -> clicks.add(caption));
+        return builder.build();
+    }
+
+    private static AbstractExtMenu roundTrip(AbstractExtMenu menu)
+            throws IOException, ClassNotFoundException {
+        return deserialize(serialize(menu));
+    }
+
+    private static byte[] serialize(AbstractExtMenu menu) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(menu);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static AbstractExtMenu deserialize(byte[] bytes)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes))) {
+            return (AbstractExtMenu) in.readObject();
+        }
+    }
+}
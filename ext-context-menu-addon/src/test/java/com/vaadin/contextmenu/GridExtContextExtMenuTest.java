@@ -0,0 +1,321 @@
+package com.vaadin.contextmenu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vaadin.contextmenu.ExtContextExtMenu.ContextMenuOpenListener.ContextMenuOpenEvent;
+import com.vaadin.contextmenu.GridExtContextExtMenu.BulkProgressListener;
+import com.vaadin.contextmenu.client.CompactMenuItems;
+import com.vaadin.contextmenu.client.ContextMenuServerRpc;
+import com.vaadin.contextmenu.client.MenuItemOverrides;
+import com.vaadin.shared.MouseEventDetails;
+import com.vaadin.shared.Registration;
+import com.vaadin.event.ContextClickEvent;
+import com.vaadin.event.ContextClickEvent.ContextClickListener;
+import com.vaadin.shared.ui.grid.GridConstants.Section;
+import com.vaadin.ui.Grid;
+import com.vaadin.ui.Grid.Column;
+import com.vaadin.ui.Grid.GridContextClickEvent;
+import com.vaadin.ui.Grid.SelectionMode;
+
+public class GridExtContextExtMenuTest {
+
+    @Test
+    public void createItemOverrides_bodyRow_predicatesEvaluated() {
+        Grid<String> grid = new Grid<String>();
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        ExtMenuItem delete = contextMenu.addItem("Delete", null);
+        ExtMenuItem rename = contextMenu.addItem("Rename", null);
+        contextMenu.addItem("Static", null);
+        contextMenu.setItemEnabledPredicate(delete,
+                row -> !row.startsWith("locked"));
+        contextMenu.setItemCaptionGenerator(rename, row -> "Rename " + row);
+
+        MenuItemOverrides overrides = contextMenu
+                .createItemOverrides(openEvent(contextMenu, grid,
+                        Section.BODY, "locked row"));
+
+        Assert.assertArrayEquals(new int[] { delete.getId(), rename.getId() },
+                overrides.ids);
+        Assert.assertEquals(MenuItemOverrides.ENABLED, overrides.masks[0]);
+        Assert.assertEquals(0, overrides.values[0]);
+        Assert.assertEquals(MenuItemOverrides.TEXT, overrides.masks[1]);
+        Assert.assertEquals("Rename locked row", overrides.texts[1]);
+        Assert.assertEquals("locked row", contextMenu.getContextItem());
+
+        Assert.assertNull(contextMenu.createItemOverrides(
+                openEvent(contextMenu, grid, Section.HEADER, null)));
+        Assert.assertNull(contextMenu.getContextItem());
+    }
+
+    @Test
+    public void itemClicked_disabledForRow_commandNotRun() {
+        Grid<String> grid = new Grid<String>();
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        ExtMenuItem delete = contextMenu.addItem("Delete",
+                selectedItem -> selected.add(selectedItem));
+        contextMenu.setItemEnabledPredicate(delete,
+                row -> !row.startsWith("locked"));
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        contextMenu.createItemOverrides(
+                openEvent(contextMenu, grid, Section.BODY, "locked row"));
+        rpc.itemClicked(delete.getId(), true);
+        Assert.assertTrue(selected.isEmpty());
+
+        contextMenu.createItemOverrides(
+                openEvent(contextMenu, grid, Section.BODY, "row"));
+        rpc.itemClicked(delete.getId(), true);
+        Assert.assertEquals(1, selected.size());
+    }
+
+    @Test
+    public void bulkCommand_openedOnSelectedRow_selectionProcessedInBatches() {
+        Grid<String> grid = new Grid<String>();
+        grid.setSelectionMode(SelectionMode.MULTI);
+        grid.setItems("a", "b", "c", "d", "e", "f");
+        for (String row : Arrays.asList("a", "b", "c", "d", "e")) {
+            grid.select(row);
+        }
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        final List<ExtMenuItem> selected = new ArrayList<ExtMenuItem>();
+        ExtMenuItem archive = contextMenu.addItem("Archive",
+                selectedItem -> selected.add(selectedItem));
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        contextMenu.setItemBulkCommand(archive,
+                (selectedItem, items) -> batches
+                        .add(new ArrayList<String>(items)));
+        contextMenu.setBulkBatchSize(2);
+        final List<Integer> progress = new ArrayList<Integer>();
+        contextMenu.setBulkProgressListener(
+                (selectedItem, processed, total) -> progress.add(processed));
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        contextMenu.createItemOverrides(
+                openEvent(contextMenu, grid, Section.BODY, "c"));
+        rpc.itemClicked(archive.getId(), true);
+
+        Assert.assertTrue(selected.isEmpty());
+        Assert.assertEquals(3, batches.size());
+        Assert.assertEquals(2, batches.get(0).size());
+        Assert.assertEquals(1, batches.get(2).size());
+        Assert.assertEquals(Arrays.asList(2, 4, 5), progress);
+
+        batches.clear();
+        contextMenu.setCommandExecutor(Runnable::run);
+        contextMenu.setBulkCommandsAsync(true);
+        contextMenu.createItemOverrides(
+                openEvent(contextMenu, grid, Section.BODY, "f"));
+        rpc.itemClicked(archive.getId(), true);
+        Assert.assertEquals(Arrays.asList(Arrays.asList("f")), batches);
+    }
+
+    @Test
+    public void bulkCommand_executor_batchesTakenByTheWorkers() {
+        Grid<String> grid = new Grid<String>();
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        ExtMenuItem archive = contextMenu.addItem("Archive", null);
+        final AtomicInteger taken = new AtomicInteger();
+        final List<Integer> takenPerBatch = new ArrayList<Integer>();
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        contextMenu.setItemBulkCommand(archive, (selectedItem, items) -> {
+            takenPerBatch.add(taken.get());
+            batches.add(new ArrayList<String>(items));
+        });
+        contextMenu.setBulkBatchSize(2);
+        // nothing depends on the clicked row
+        contextMenu.setOpenOnClient(true);
+        Assert.assertTrue(contextMenu.getState(false).openOnClient);
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        contextMenu.setBulkItemsProvider(() -> Stream.of("a", "b", "c")
+                .peek(row -> taken.incrementAndGet())
+                .onClose(() -> closed.set(true)));
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        contextMenu.setCommandExecutor(tasks::add);
+        contextMenu.setBulkCommandsAsync(true);
+        contextMenu.setBulkParallelism(2);
+        final List<Integer> progress = new ArrayList<Integer>();
+        final List<Integer> completed = new ArrayList<Integer>();
+        contextMenu.setBulkProgressListener(new BulkProgressListener() {
+            @Override
+            public void progress(ExtMenuItem selectedItem, int processed,
+                    int total) {
+                progress.add(processed);
+            }
+
+            @Override
+            public void completed(ExtMenuItem selectedItem, int processed,
+                    Throwable failure) {
+                completed.add(processed);
+            }
+        });
+        ContextMenuServerRpc rpc = (ContextMenuServerRpc) contextMenu
+                .getRpcManager(ContextMenuServerRpc.class.getName())
+                .getImplementation();
+
+        rpc.itemClicked(archive.getId(), true);
+        Assert.assertEquals(0, taken.get());
+        Assert.assertEquals(2, tasks.size());
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+        // each batch is taken only when the previous one is done
+        Assert.assertEquals(Arrays.asList(2, 3), takenPerBatch);
+        Assert.assertEquals(
+                Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")),
+                batches);
+        Assert.assertEquals(Arrays.asList(2, 3), progress);
+        Assert.assertTrue(closed.get());
+        Assert.assertEquals(Arrays.asList(3), completed);
+    }
+
+    @Test
+    public void gridListeners_oneOpenListener_dispatchedBySectionAndColumn() {
+        Grid<String> grid = new Grid<String>();
+        Column<String, String> name = grid.addColumn(row -> row);
+        Column<String, Integer> length = grid.addColumn(String::length);
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        final List<String> calls = new ArrayList<String>();
+        Registration headerRegistration = contextMenu
+                .addGridHeaderContextMenuListener(event -> calls.add("header"));
+        Registration bodyRegistration = contextMenu
+                .addGridBodyContextMenuListener(
+                        event -> calls.add("body " + event.getItem()));
+        Registration lengthRegistration = contextMenu
+                .addGridColumnContextMenuListener(Section.BODY, length,
+                        event -> calls.add("length"));
+
+        Assert.assertEquals(1, contextMenu
+                .getListeners(ContextMenuOpenEvent.class).size());
+        // the listeners need the grid event, which only the server has
+        contextMenu.setOpenOnClient(true);
+        Assert.assertFalse(contextMenu.getState(false).openOnClient);
+
+        ContextClickListener listener = (ContextClickListener) grid
+                .getListeners(ContextClickEvent.class).iterator().next();
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.BODY, 0, "row", length));
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.BODY, 0, "row", name));
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.HEADER, -1, null, name));
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.FOOTER, -1, null, name));
+
+        Assert.assertEquals(
+                Arrays.asList("body row", "length", "body row", "header"),
+                calls);
+
+        lengthRegistration.remove();
+        headerRegistration.remove();
+        calls.clear();
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.BODY, 0, "row", length));
+        listener.contextClick(new GridContextClickEvent<String>(grid,
+                new MouseEventDetails(), Section.HEADER, -1, null, name));
+        Assert.assertEquals(Arrays.asList("body row"), calls);
+
+        bodyRegistration.remove();
+        Assert.assertTrue(contextMenu.getListeners(ContextMenuOpenEvent.class)
+                .isEmpty());
+        Assert.assertTrue(contextMenu.getState(false).openOnClient);
+    }
+
+    @Test
+    public void getMenuTree_columnAndSectionMenus_selectedByClickedCell() {
+        Grid<String> grid = new Grid<String>();
+        Column<String, String> name = grid.addColumn(row -> row).setId("name");
+        Column<String, Integer> length = grid.addColumn(String::length)
+                .setId("length");
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        contextMenu.addItem("Default", null);
+        ExtMenuItem bodyMenu = contextMenu.getSectionMenu(Section.BODY);
+        bodyMenu.addItem("Edit", null, null);
+        ExtMenuItem nameMenu = contextMenu.getColumnMenu(Section.BODY, name);
+        nameMenu.addItem("Copy name", null, null);
+
+        Assert.assertSame(bodyMenu, contextMenu.getSectionMenu(Section.BODY));
+        Assert.assertEquals(1, contextMenu.getSize());
+        Assert.assertEquals("Default",
+                contextMenu.getItems().get(0).getText());
+        Assert.assertArrayEquals(
+                new int[] { bodyMenu.getId(), nameMenu.getId() },
+                contextMenu.getState(false).menuTreeIds);
+        Assert.assertFalse(contextMenu.getState(false).openOnClient);
+
+        long modificationCount = contextMenu.getModificationCount();
+        Assert.assertSame(nameMenu, contextMenu.getMenuTree(
+                openEvent(contextMenu, grid, Section.BODY, "row", name)));
+        Assert.assertSame(bodyMenu, contextMenu.getMenuTree(
+                openEvent(contextMenu, grid, Section.BODY, "row", length)));
+        Assert.assertNull(contextMenu.getMenuTree(
+                openEvent(contextMenu, grid, Section.HEADER, null, name)));
+        Assert.assertEquals(modificationCount,
+                contextMenu.getModificationCount());
+
+        contextMenu.removeColumnMenu(Section.BODY, name);
+        Assert.assertSame(bodyMenu, contextMenu.getMenuTree(
+                openEvent(contextMenu, grid, Section.BODY, "row", name)));
+        Assert.assertArrayEquals(new int[] { bodyMenu.getId() },
+                contextMenu.getState(false).menuTreeIds);
+        Assert.assertFalse(contextMenu.containsItem(nameMenu));
+    }
+
+    @Test
+    public void removeSectionMenu_lastMenuTree_openOnClientAgain() {
+        Grid<String> grid = new Grid<String>();
+        GridExtContextExtMenu<String> contextMenu = new GridExtContextExtMenu<String>(
+                grid);
+        contextMenu.setOpenOnClient(true);
+        ExtMenuItem headerMenu = contextMenu.getSectionMenu(Section.HEADER);
+        ExtMenuItem edit = headerMenu.addItem("Edit", null, null);
+        Assert.assertFalse(contextMenu.getState(false).openOnClient);
+
+        // the menu trees are not top level items
+        contextMenu.removeItems();
+        Assert.assertTrue(contextMenu.containsItem(edit));
+        contextMenu.beforeClientResponse(true);
+        Assert.assertEquals(1, CompactMenuItems
+                .decode(contextMenu.getState().menuItems).size());
+
+        contextMenu.removeSectionMenu(Section.HEADER);
+        Assert.assertFalse(contextMenu.containsItem(edit));
+        Assert.assertEquals(0, contextMenu.getState(false).menuTreeIds.length);
+        Assert.assertTrue(contextMenu.getState(false).openOnClient);
+    }
+
+    private static ContextMenuOpenEvent openEvent(
+            ExtContextExtMenu contextMenu, Grid<String> grid, Section section,
+            String row) {
+        return openEvent(contextMenu, grid, section, row, null);
+    }
+
+    private static ContextMenuOpenEvent openEvent(
+            ExtContextExtMenu contextMenu, Grid<String> grid, Section section,
+            String row, Column<String, ?> column) {
+        return new ContextMenuOpenEvent(contextMenu,
+                new GridContextClickEvent<String>(grid,
+                        new MouseEventDetails(), section, row != null ? 0 : -1,
+                        row, column));
+    }
+}
@@ -0,0 +1,88 @@
+package com.vaadin.contextmenu;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Tag;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.server.JsonPaintTarget;
+import com.vaadin.server.LegacyCommunicationManager;
+import com.vaadin.server.PaintException;
+import com.vaadin.ui.declarative.DesignContext;
+
+/**
+ * Painting a menu bar with the legacy UIDL mechanism, and writing and reading
+ * it as a declarative design.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MenuBarBenchmark {
+
+    /** Number of items in the menu bar, ten per sub-menu. */
+    @Param({ "100", "1000" })
+    public int size;
+
+    private ExtMenuBar menuBar;
+    private Element design;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        menuBar = new ExtMenuBar();
+        ExtMenuItem parent = null;
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                parent = menuBar.addItem("Menu " + i, null);
+            } else {
+                ExtMenuItem item = parent.addItem("Item " + i, null,
+                        selectedItem -> selectedItem.getId());
+                item.setDescription("Description " + i);
+                item.setCheckable(i % 3 == 0);
+            }
+        }
+        design = writeDesign();
+    }
+
+    @Benchmark
+    public String paintContent() throws PaintException {
+        StringWriter writer = new StringWriter();
+        JsonPaintTarget target = new JsonPaintTarget(
+                new LegacyCommunicationManager(null), writer, false);
+        // the same wrapping tag as for legacy components in a UIDL response
+        target.startTag("change");
+        menuBar.paintContent(target);
+        target.endTag("change");
+        target.close();
+        return writer.toString();
+    }
+
+    @Benchmark
+    public Element writeDesign() {
+        Element element = new Element(Tag.valueOf("vaadin-ext-menu-bar"), "");
+        menuBar.writeDesign(element, new DesignContext());
+        return element;
+    }
+
+    @Benchmark
+    public ExtMenuBar readDesign() {
+        ExtMenuBar readBar = new ExtMenuBar();
+        readBar.readDesign(design, new DesignContext());
+        return readBar;
+    }
+}
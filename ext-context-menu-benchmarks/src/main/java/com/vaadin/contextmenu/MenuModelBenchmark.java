@@ -0,0 +1,99 @@
+package com.vaadin.contextmenu;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building a menu item by item, and resolving clicked items by id.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MenuModelBenchmark {
+
+    /** Number of items in the menu. */
+    @Param({ "100", "1000", "10000" })
+    public int size;
+
+    private AbstractExtMenu clickMenu;
+    private int firstItemId;
+    private int lastItemId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clickMenu = new AbstractExtMenu();
+        // ten items per sub-menu, so the last item is deep in the tree
+        ExtMenuItem parent = null;
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                parent = clickMenu.addItem("Parent " + i, null);
+                if (i == 0) {
+                    firstItemId = parent.getId();
+                }
+            } else {
+                lastItemId = parent
+                        .addItem("Item " + i, null,
+                                selectedItem -> selectedItem.getId())
+                        .getId();
+            }
+        }
+    }
+
+    @Benchmark
+    public AbstractExtMenu addItem() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        for (int i = 0; i < size; i++) {
+            menu.addItem("Item " + i, null);
+        }
+        return menu;
+    }
+
+    @Benchmark
+    public AbstractExtMenu addItemBefore() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem last = menu.addItem("Last", null);
+        for (int i = 1; i < size; i++) {
+            menu.addItemBefore("Item " + i, null, null, last);
+        }
+        return menu;
+    }
+
+    @Benchmark
+    public AbstractExtMenu addChildItemBefore() {
+        AbstractExtMenu menu = new AbstractExtMenu();
+        ExtMenuItem parent = menu.addItem("Parent", null);
+        ExtMenuItem last = parent.addItem("Last", null, null);
+        for (int i = 1; i < size; i++) {
+            parent.addItemBefore("Item " + i, null, null, last);
+        }
+        return menu;
+    }
+
+    @Benchmark
+    public void itemClicked(Blackhole blackhole) {
+        clickMenu.itemClicked(lastItemId);
+        clickMenu.itemClicked(firstItemId);
+        blackhole.consume(clickMenu);
+    }
+
+    @Benchmark
+    public ExtMenuItem findItemById() {
+        return clickMenu.findItemById(lastItemId);
+    }
+}
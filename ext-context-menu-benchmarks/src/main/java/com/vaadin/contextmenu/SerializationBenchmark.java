@@ -0,0 +1,174 @@
+package com.vaadin.contextmenu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.contextmenu.ExtMenu.Command;
+import com.vaadin.server.Resource;
+
+/**
+ * Serializing and deserializing a menu, as done when a session is
+ * replicated or passivated. The size of the serialized menu is printed when
+ * the trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private static final Command REGISTERED_COMMAND = ExtMenuCommandRegistry
+            .register(SerializationBenchmark.class.getName() + ".command",
+                    selectedItem -> selectedItem.getId());
+
+    /** Number of items in the menu. */
+    @Param({ "100", "1000", "10000" })
+    public int size;
+
+    /**
+     * "registered" uses a command from the command registry for every item,
+     * "lambda" gives every item its own serializable lambda.
+     */
+    @Param({ "registered", "lambda" })
+    public String commands;
+
+    /**
+     * "externalizable" serializes the menu itself, "default" serializes an
+     * equivalent tree of {@link DefaultSerializedItem}s, which have the fields
+     * the items had before they were externalizable, with default
+     * serialization.
+     */
+    @Param({ "externalizable", "default" })
+    public String form;
+
+    private AbstractExtMenu menu;
+    private Object serialized;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        menu = new AbstractExtMenu();
+        // ten items per sub-menu
+        ExtMenuItem parent = null;
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                parent = menu.addItem("Group " + i, null);
+            } else if ("registered".equals(commands)) {
+                parent.addItem("Item " + i, null, REGISTERED_COMMAND);
+            } else {
+                String caption = "Item " + i;
+                parent.addItem(caption, null,
+                        selectedItem -> selectedItem.setText(caption));
+            }
+        }
+        if ("default".equals(form)) {
+            DefaultSerializedMenu defaultMenu = new DefaultSerializedMenu();
+            defaultMenu.htmlContentAllowed = menu.isHtmlContentAllowed();
+            for (ExtMenuItem item : menu.getItems()) {
+                defaultMenu.items.add(new DefaultSerializedItem(item, null));
+            }
+            serialized = defaultMenu;
+        } else {
+            serialized = menu;
+        }
+        bytes = serialize();
+        System.out.println(form + " form of " + size + " items: "
+                + bytes.length + " bytes");
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(out)) {
+            objects.writeObject(serialized);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objects = new ObjectInputStream(
+                new ByteArrayInputStream(bytes))) {
+            return objects.readObject();
+        }
+    }
+
+    /**
+     * The menu as it was serialized before it was externalizable.
+     */
+    @SuppressWarnings("serial")
+    static class DefaultSerializedMenu implements Serializable {
+        private final List<DefaultSerializedItem> items = new ArrayList<DefaultSerializedItem>();
+        private boolean htmlContentAllowed;
+    }
+
+    /**
+     * An item with the fields items had before they were externalizable, the
+     * boolean properties and the child items in their own fields.
+     */
+    @SuppressWarnings("serial")
+    static class DefaultSerializedItem implements Serializable {
+        private final int itsId;
+        private Command itsCommand;
+        private String itsText;
+        private List<DefaultSerializedItem> itsChildren;
+        private Resource itsIcon;
+        private DefaultSerializedItem itsParent;
+        private boolean enabled;
+        private boolean visible;
+        private boolean isSeparator;
+        private String styleName;
+        private String description;
+        private boolean checkable;
+        private boolean checked;
+        private boolean link;
+        private String target;
+        private String url;
+
+        DefaultSerializedItem(ExtMenuItem item, DefaultSerializedItem parent) {
+            itsId = item.getId();
+            itsCommand = item.getCommand();
+            itsText = item.getText();
+            itsIcon = item.getIcon();
+            itsParent = parent;
+            enabled = item.isEnabled();
+            visible = item.isVisible();
+            isSeparator = item.isSeparator();
+            styleName = item.getStyleName();
+            description = item.getDescription();
+            checkable = item.isCheckable();
+            checked = item.isChecked();
+            link = item.isLink();
+            target = item.getTarget();
+            url = item.getUrl();
+            if (item.hasChildren()) {
+                itsChildren = new ArrayList<DefaultSerializedItem>();
+                for (ExtMenuItem child : item.getChildren()) {
+                    itsChildren.add(new DefaultSerializedItem(child, this));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.vaadin.contextmenu;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vaadin.contextmenu.client.CompactMenuItems;
+import com.vaadin.contextmenu.client.ExtMenuSharedState.ExtMenuItemState;
+import com.vaadin.ui.Button;
+
+/**
+ * Converting the items of a context menu to the state sent to the client.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateConversionBenchmark {
+
+    /** Number of items in the menu. */
+    @Param({ "100", "1000", "10000" })
+    public int size;
+
+    /**
+     * "wide" has all items at the top level, "deep" has chains of nested
+     * sub-menus {@value #DEPTH} levels deep.
+     */
+    @Param({ "wide", "deep" })
+    public String shape;
+
+    private static final int DEPTH = 50;
+
+    private ExtContextExtMenu contextMenu;
+    private List<ExtMenuItemState> state;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        contextMenu = new ExtContextExtMenu(new Button(), false);
+        if ("wide".equals(shape)) {
+            for (int i = 0; i < size; i++) {
+                contextMenu.addItem("Item " + i, null);
+            }
+        } else {
+            ExtMenuItem parent = null;
+            for (int i = 0; i < size; i++) {
+                if (i % DEPTH == 0) {
+                    parent = contextMenu.addItem("Item " + i, null);
+                } else {
+                    parent = parent.addItem("Item " + i, null, null);
+                }
+            }
+        }
+        state = contextMenu.convertItemsToState(contextMenu.getItems());
+    }
+
+    @Benchmark
+    public List<ExtMenuItemState> convertItemsToState() {
+        return contextMenu.convertItemsToState(contextMenu.getItems());
+    }
+
+    @Benchmark
+    public CompactMenuItems encode() {
+        return CompactMenuItems.encode(state);
+    }
+
+    @Benchmark
+    public List<ExtMenuItemState> encodeAndDecode() {
+        return CompactMenuItems.decode(CompactMenuItems.encode(state));
+    }
+}